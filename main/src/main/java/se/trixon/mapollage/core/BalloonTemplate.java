@@ -0,0 +1,103 @@
+/*
+ * Copyright 2026 Patrik Karlström <patrik@trixon.se>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.mapollage.core;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import se.trixon.mapollage.core.TaskDescription.DescriptionSegment;
+
+/**
+ * A description layout written once, as the text of the balloon style.
+ * <p>
+ * The segments of the description are replaced by entities of a schema, and
+ * the placemarks only carry the values in their extended data. The photo
+ * segment is split into the source, width and height of the image.
+ *
+ * @author Patrik Karlström <patrik@trixon.se>
+ */
+public class BalloonTemplate {
+
+    public static final String SCHEMA_ID = "mapollage";
+
+    private final List<String> mFieldNames = new ArrayList<>();
+    private final Set<DescriptionSegment> mSegments = EnumSet.noneOf(DescriptionSegment.class);
+    private final String mText;
+
+    /**
+     * @param template the compiled description
+     */
+    public BalloonTemplate(DescriptionTemplate template) {
+        mSegments.addAll(template.getSegments());
+        var entities = new EnumMap<DescriptionSegment, String>(DescriptionSegment.class);
+
+        //Fields are added in enum order, the order of the values
+        for (var segment : mSegments) {
+            if (segment == DescriptionSegment.PHOTO) {
+                entities.put(segment, "<p><img src='%s' width='%s' height='%s'></p>".formatted(
+                        addField("photo_src"),
+                        addField("photo_width"),
+                        addField("photo_height")
+                ));
+            } else {
+                entities.put(segment, addField(segment.name().toLowerCase(Locale.ROOT)));
+            }
+        }
+
+        var builder = new StringBuilder();
+        try {
+            template.render(builder, entities::get);
+        } catch (IOException ex) {
+            //not thrown by the entities
+            throw new UncheckedIOException(ex);
+        }
+        mText = builder.toString();
+    }
+
+    /**
+     * @return the names of the schema fields, one per segment in enum order
+     * and three for the photo
+     */
+    public List<String> getFieldNames() {
+        return Collections.unmodifiableList(mFieldNames);
+    }
+
+    /**
+     * @return the segments of the description, in enum order
+     */
+    public Set<DescriptionSegment> getSegments() {
+        return Collections.unmodifiableSet(mSegments);
+    }
+
+    /**
+     * @return the text of the balloon style
+     */
+    public String getText() {
+        return mText;
+    }
+
+    private String addField(String name) {
+        mFieldNames.add(name);
+
+        return "$[%s/%s]".formatted(SCHEMA_ID, name);
+    }
+}
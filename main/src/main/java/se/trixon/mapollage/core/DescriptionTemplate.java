@@ -0,0 +1,109 @@
+/*
+ * Copyright 2026 Patrik Karlström <patrik@trixon.se>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.mapollage.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import se.trixon.mapollage.core.TaskDescription.DescriptionSegment;
+
+/**
+ * A description compiled into literals and segment slots.
+ * <p>
+ * The template is parsed once per run, and rendering a placemark is a single
+ * pass that only asks for the values of the slots in use. Values are never
+ * searched for segments, so a file name that happens to contain one is left
+ * as is.
+ *
+ * @author Patrik Karlström <patrik@trixon.se>
+ */
+public class DescriptionTemplate {
+
+    private final List<Object> mParts = new ArrayList<>();
+    private final Set<DescriptionSegment> mSegments = EnumSet.noneOf(DescriptionSegment.class);
+
+    /**
+     * @param template the description, with segments like +filename
+     */
+    public DescriptionTemplate(String template) {
+        int literalStart = 0;
+        int index = template.indexOf('+');
+
+        while (index >= 0) {
+            var segment = getSegmentAt(template, index);
+            if (segment != null) {
+                if (index > literalStart) {
+                    mParts.add(template.substring(literalStart, index));
+                }
+                mParts.add(segment);
+                mSegments.add(segment);
+                literalStart = index + segment.toString().length();
+                index = template.indexOf('+', literalStart);
+            } else {
+                index = template.indexOf('+', index + 1);
+            }
+        }
+
+        if (literalStart < template.length()) {
+            mParts.add(template.substring(literalStart));
+        }
+    }
+
+    /**
+     * @return the segments in use
+     */
+    public Set<DescriptionSegment> getSegments() {
+        return Collections.unmodifiableSet(mSegments);
+    }
+
+    /**
+     * Appends the description to the builder.
+     *
+     * @param builder the builder
+     * @param values the values of the slots, asked once per slot
+     * @throws IOException
+     */
+    public void render(StringBuilder builder, Values values) throws IOException {
+        for (var part : mParts) {
+            if (part instanceof DescriptionSegment segment) {
+                var value = values.get(segment);
+                if (value != null) {
+                    builder.append(value);
+                }
+            } else {
+                builder.append((String) part);
+            }
+        }
+    }
+
+    private DescriptionSegment getSegmentAt(String template, int index) {
+        for (var segment : DescriptionSegment.values()) {
+            if (template.startsWith(segment.toString(), index)) {
+                return segment;
+            }
+        }
+
+        return null;
+    }
+
+    public interface Values {
+
+        String get(DescriptionSegment segment) throws IOException;
+    }
+}
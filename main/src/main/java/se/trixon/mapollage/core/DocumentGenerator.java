@@ -16,26 +16,14 @@
 package se.trixon.mapollage.core;
 
 import com.drew.imaging.ImageProcessingException;
-import com.drew.metadata.exif.GpsDescriptor;
-import com.drew.metadata.exif.GpsDirectory;
-import de.micromata.opengis.kml.v_2_2_0.BalloonStyle;
-import de.micromata.opengis.kml.v_2_2_0.ColorMode;
-import de.micromata.opengis.kml.v_2_2_0.Coordinate;
-import de.micromata.opengis.kml.v_2_2_0.Document;
-import de.micromata.opengis.kml.v_2_2_0.Feature;
-import de.micromata.opengis.kml.v_2_2_0.Folder;
-import de.micromata.opengis.kml.v_2_2_0.Kml;
-import de.micromata.opengis.kml.v_2_2_0.KmlFactory;
-import de.micromata.opengis.kml.v_2_2_0.Placemark;
-import de.micromata.opengis.kml.v_2_2_0.Point;
-import de.micromata.opengis.kml.v_2_2_0.Snippet;
-import de.micromata.opengis.kml.v_2_2_0.StyleState;
 import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.geom.Point2D;
 import java.io.File;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.time.LocalDateTime;
@@ -45,11 +33,17 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
 import java.util.ResourceBundle;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Pattern;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
@@ -72,32 +66,47 @@ import se.trixon.mapollage.core.TaskDescription.DescriptionSegment;
  */
 public class DocumentGenerator {
 
-    private final BalloonStyle mBalloonStyle;
-    private final Snippet mBlankSnippet = new Snippet();
+    private static final int FOLDER_LINK_MIN_LOD_PIXELS = 64;
+    private static final double FOLDER_LINK_MIN_SPAN = 0.01;
+    private static final long MAX_DISPLAY_BYTES = 1024 * 1024;
+    private static final String STYLES_FILE_NAME = "styles.kml";
+
+    private final BalloonTemplate mBalloonTemplate;
     private final ResourceBundle mBundle = NbBundle.getBundle(DocumentGenerator.class);
-    private final DateFormat mDateFormatDate = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.MEDIUM);
+    private PlacemarkClusters mClusters;
+    private final DescriptionTemplate mCustomTemplate;
+    private final ThreadLocal<DateFormat> mDateFormatDate = ThreadLocal.withInitial(() -> DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.MEDIUM));
+    private final ThreadLocal<StringBuilder> mDescriptionBuilder = ThreadLocal.withInitial(StringBuilder::new);
     private final File mDestinationFile;
-    private final HashMap<String, Properties> mDirToDesc = new HashMap<>();
-    private final Document mDocument;
-    private final HashMap<File, File> mFileThumbMap = new HashMap<>();
+    private File mDocumentFile;
+    private final Map<String, Properties> mDirToDesc = new ConcurrentHashMap<>();
     private final Pattern mFolderByRegexPattern;
-    private final HashMap<Folder, ArrayList<Coordinate>> mFolderPolygonInputs = new HashMap<>();
-    private final Map<String, Folder> mFolders = new HashMap<>();
-    private Folder mImageRootFolder;
+    private KmlFolder mFolderLinksFolder;
+    private final Map<String, KmlFolder> mFolders = new HashMap<>();
+    private IconAtlas mIconAtlas;
+    private ThumbnailSpec mIconSpec;
+    private final boolean mKmz;
+    private KmzWriter mKmzWriter;
+    private KmlFolder mImageRootFolder;
     private final InputOutput mInputOutput;
-    private final Kml mKml = new Kml();
     private String mKmlString;
     private final ArrayList<LineNode> mLineNodes = new ArrayList<>();
-    private int mNumOfExif;
-    private int mNumOfGps;
-    private int mNumOfPlacemarks;
+    private final LongAdder mNumOfExif = new LongAdder();
+    private final LongAdder mNumOfGps = new LongAdder();
+    private final LongAdder mNumOfPlacemarks = new LongAdder();
     private final OutputHelper mOutputHelper;
-    private Folder mPathFolder;
-    private Folder mPathGapFolder;
-    private PhotoInfo mPhotoInfo;
-    private Folder mPolygonFolder;
-    private final HashMap<Folder, Folder> mPolygonRemovals = new HashMap<>();
-    private Folder mRootFolder;
+    private final File mPlacemarkDir;
+    private final File mPlacemarkFile;
+    private KmlFolder mPathFolder;
+    private KmlFolder mPathGapFolder;
+    private KmlFolder mPolygonFolder;
+    private RegionTiles mRegionTiles;
+    private KmlFolder mRootFolder;
+    private KmlWriter mSpool;
+    private final DescriptionTemplate mStaticTemplate;
+    private KmlWriter mStyleSpool;
+    private KmlStyles mStyles;
+    private final String mStylesHref;
     private final Task mTask;
     private final TaskDescription mTaskDescription;
     private final TaskFolder mTaskFolder;
@@ -105,7 +114,13 @@ public class DocumentGenerator {
     private final TaskPhoto mTaskPhoto;
     private final TaskPlacemark mTaskPlacemark;
     private final TaskSource mTaskSource;
+    private ThumbnailManifest mThumbnailManifest;
+    private ThumbnailRenderer mThumbnailRenderer;
+    private ThumbnailSpec mThumbnailSpec;
+    private long mThumbnailStoreHits;
     private File mThumbsDir;
+    private String mThumbsHref;
+    private final LinkedHashMap<String, String> mSummary = new LinkedHashMap<>();
     private final SimpleDateFormat mTimeStampDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssX");
 
     public DocumentGenerator(Task task, InputOutput inputOutput, OutputHelper outputHelper) {
@@ -121,84 +136,91 @@ public class DocumentGenerator {
         mTaskPhoto = mTask.getPhoto();
         mDestinationFile = mTask.getDestinationFile();
         mFolderByRegexPattern = Pattern.compile(mTaskFolder.getRegex());
-
-        mDocument = mKml.createAndSetDocument().withOpen(true);
-        mBalloonStyle = KmlFactory.createBalloonStyle()
-                .withId("BalloonStyleId")
-                //aabbggrr
-                .withBgColor("ff272420")
-                .withTextColor("ffeeeeee")
-                .withText("$[description]");
-    }
-
-    public void addPhoto(File file) throws ImageProcessingException, IOException {
-        mPhotoInfo = new PhotoInfo(file, mTask);
-        try {
-            mPhotoInfo.init();
-        } catch (ImageProcessingException | IOException e) {
-            if (mPhotoInfo.hasExif()) {
-                mNumOfExif++;
-            }
-
-            throw e;
-        }
-
-        boolean hasLocation = false;
-        if (mPhotoInfo.hasExif()) {
-            mNumOfExif++;
-            hasLocation = mPhotoInfo.hasGps() && !mPhotoInfo.isZeroCoordinate();
-            if (hasLocation) {
-                mNumOfGps++;
-            }
+        mKmz = "kmz".equalsIgnoreCase(FilenameUtils.getExtension(mDestinationFile.getName()));
+
+        //Tiles and folder files are written next to their styles, in a directory of their own
+        var baseName = FilenameUtils.getBaseName(mDestinationFile.getAbsolutePath());
+        if (mTaskPlacemark.isRegionTiles()) {
+            mPlacemarkDir = new File(mDestinationFile.getParent(), "%s-tiles".formatted(baseName));
+        } else if (mTaskFolder.isSplitFiles()) {
+            mPlacemarkDir = new File(mDestinationFile.getParent(), "%s-folders".formatted(baseName));
         } else {
-            throw new ImageProcessingException(String.format("E010 %s", file.getAbsolutePath()));
+            mPlacemarkDir = null;
         }
 
-        var exifDate = mPhotoInfo.getDate();
-        if (hasLocation && mTaskPath.isDrawPath()) {
-            mLineNodes.add(new LineNode(exifDate, mPhotoInfo.getLat(), mPhotoInfo.getLon()));
+        if (mPlacemarkDir != null) {
+            mPlacemarkFile = new File(mPlacemarkDir, STYLES_FILE_NAME);
+            mStylesHref = STYLES_FILE_NAME;
+        } else {
+            mPlacemarkFile = mDestinationFile;
+            mStylesHref = "";
         }
 
-        if (hasLocation || mTaskSource.isIncludeNullCoordinate()) {
-            var folder = getFolder(file, exifDate);
+        mCustomTemplate = new DescriptionTemplate(mTaskDescription.getCustomValue());
+        mStaticTemplate = new DescriptionTemplate(getStaticDescription());
 
-            var imageId = String.format("%08x", FileUtils.checksumCRC32(file));
-            var styleNormalId = String.format("s_%s", imageId);
-            var styleHighlightId = String.format("s_%s_hl", imageId);
-            var styleMapId = String.format("m_%s", imageId);
+        if (mTaskDescription.isBalloonTemplate() && mTaskDescription.getMode() == TaskDescription.DescriptionMode.STATIC) {
+            mBalloonTemplate = new BalloonTemplate(mStaticTemplate);
+        } else if (mTaskDescription.isBalloonTemplate() && mTaskDescription.getMode() == TaskDescription.DescriptionMode.CUSTOM) {
+            mBalloonTemplate = new BalloonTemplate(mCustomTemplate);
+        } else {
+            mBalloonTemplate = null;
+        }
+    }
 
-            var normalStyle = mDocument
-                    .createAndAddStyle()
-                    .withId(styleNormalId);
+    public void addPhoto(File file) throws ImageProcessingException, IOException {
+        addPhoto(analyze(file));
+    }
 
-            var normalIconStyle = normalStyle
-                    .createAndSetIconStyle()
-                    .withScale(1.0);
+    /**
+     * Adds the analyzed photo to the document. Must be called from one thread
+     * at a time, in the order the placemarks should appear.
+     *
+     * @param analysis the result of {@link #analyze(java.io.File)}
+     * @throws IOException
+     */
+    public void addPhoto(Analysis analysis) throws IOException {
+        var file = analysis.file();
+        var photoInfo = analysis.photoInfo();
+        var exifDate = analysis.date();
+
+        if (analysis.hasLocation() && mTaskPath.isDrawPath()) {
+            mLineNodes.add(new LineNode(exifDate, photoInfo.getLat(), photoInfo.getLon()));
+        }
 
-            var highlightStyle = mDocument
-                    .createAndAddStyle()
-                    .withBalloonStyle(mBalloonStyle)
-                    .withId(styleHighlightId);
+        if (analysis.hasLocation() || mTaskSource.isIncludeNullCoordinate()) {
+            var folder = getFolder(file, exifDate);
 
-            var highlightIconStyle = highlightStyle
-                    .createAndSetIconStyle()
-                    .withScale(1.1);
+            var imageId = photoInfo.getContentId();
+            double normalScale = 1.0;
+            double highlightScale = 1.1;
+            String href = null;
+            Rectangle area = null;
 
             if (mTaskPlacemark.isSymbolAsPhoto()) {
-                var icon = KmlFactory.createIcon().withHref(String.format("%s/%s.jpg", mThumbsDir.getName(), imageId));
-                normalIconStyle.setIcon(icon);
-                normalIconStyle.setScale(mTaskPlacemark.getScale());
+                if (mIconAtlas != null) {
+                    var cell = mIconAtlas.add(folder, imageId, photoInfo.getThumbnailDimension(mIconSpec));
+                    href = cell.getHref(mThumbsHref);
+                    area = cell.getArea();
+                } else {
+                    href = String.format("%s/%s", mThumbsHref, analysis.iconFile().getName());
+                }
 
-                double highlightZoom = mTaskPlacemark.getZoom() * mTaskPlacemark.getScale();
-                highlightIconStyle.setIcon(icon);
-                highlightIconStyle.setScale(highlightZoom);
+                normalScale = mTaskPlacemark.getScale();
+                highlightScale = mTaskPlacemark.getZoom() * mTaskPlacemark.getScale();
             }
 
             if (isUsingThumbnails()) {
-                var thumbFile = new File(mThumbsDir, imageId + ".jpg");
-                mFileThumbMap.put(file, thumbFile);
-                if (Files.isWritable(thumbFile.getParentFile().toPath())) {
-                    mPhotoInfo.createThumbnail(thumbFile);
+                var renditions = new ArrayList<ThumbnailRenderer.Rendition>();
+                if (analysis.thumbFile() != null) {
+                    renditions.add(new ThumbnailRenderer.Rendition(analysis.thumbFile(), mThumbnailSpec));
+                }
+                if (analysis.iconFile() != null) {
+                    renditions.add(new ThumbnailRenderer.Rendition(analysis.iconFile(), mIconSpec));
+                }
+
+                if (Files.isWritable(mThumbsDir.toPath())) {
+                    mThumbnailRenderer.submit(photoInfo, file, renditions);
                 } else {
                     mOutputHelper.println(OutputLineMode.ERROR, mBundle.getString("insufficient_privileges").formatted(mDestinationFile.getAbsolutePath()));
                     Thread.currentThread().interrupt();
@@ -206,85 +228,270 @@ public class DocumentGenerator {
                 }
             }
 
-            mDocument.createAndAddStyleMap().withId(styleMapId)
-                    .addToPair(KmlFactory.createPair().withKey(StyleState.NORMAL).withStyleUrl("#" + styleNormalId))
-                    .addToPair(KmlFactory.createPair().withKey(StyleState.HIGHLIGHT).withStyleUrl("#" + styleHighlightId));
+            var styleMapId = mStyles.getStyleMapId(normalScale, highlightScale, href, area);
 
-            var placemark = KmlFactory.createPlacemark()
-                    .withName(getSafeXmlString(getPlacemarkName(file, exifDate)))
-                    .withSnippet(mBlankSnippet)
-                    .withStyleUrl("#" + styleMapId);
+            long position = mSpool.getPosition();
+            mSpool.startPlacemark(getPlacemarkName(file, exifDate));
+            mSpool.writeSnippet();
 
-            var desc = getPlacemarkDescription(file, mPhotoInfo, exifDate);
+            var desc = analysis.description();
             if (!StringUtils.isBlank(desc)) {
-                placemark.setDescription(desc);
+                mSpool.writeElement("description", desc);
             }
 
-            placemark.createAndSetPoint()
-                    .addToCoordinates(mPhotoInfo.getLon(), mPhotoInfo.getLat(), 0F);
-
             if (mTaskPlacemark.isTimestamp()) {
-                var timeStamp = KmlFactory.createTimeStamp();
-                timeStamp.setWhen(mTimeStampDateFormat.format(exifDate));
-                placemark.setTimePrimitive(timeStamp);
+                mSpool.writeTimeStamp(mTimeStampDateFormat.format(exifDate));
+            }
+
+            mSpool.writeElement("styleUrl", mStylesHref + "#" + styleMapId);
+            if (mClusters != null) {
+                mClusters.writeRegion(mSpool, photoInfo.getLon(), photoInfo.getLat());
+                mClusters.add(photoInfo.getLon(), photoInfo.getLat(), styleMapId);
+            }
+            if (analysis.balloonData() != null) {
+                mSpool.writeSchemaData(mStylesHref + "#" + BalloonTemplate.SCHEMA_ID, mBalloonTemplate.getFieldNames(), analysis.balloonData());
             }
+            mSpool.writePoint(photoInfo.getLon(), photoInfo.getLat());
+            mSpool.endPlacemark();
 
-            folder.addToFeature(placemark);
-            mNumOfPlacemarks++;
+            if (mRegionTiles != null) {
+                mRegionTiles.add(photoInfo.getLon(), photoInfo.getLat(), position, mSpool.getPosition() - position);
+            } else {
+                folder.addPlacemark(position, mSpool.getPosition() - position);
+            }
+            if (mTaskPath.isDrawPolygon() || mFolderLinksFolder != null) {
+                folder.addCoordinate(photoInfo.getLon(), photoInfo.getLat());
+            }
+            mNumOfPlacemarks.increment();
         }
     }
 
-    public void addPolygons() {
-        mPolygonFolder = KmlFactory.createFolder()
-                .withName(Dict.POLYGON.toString())
-                .withOpen(false);
-        addPolygons(mPolygonFolder, mImageRootFolder.getFeature());
+    public void addPolygons() throws IOException {
+        mPolygonFolder = new KmlFolder(Dict.POLYGON.toString(), false);
+        addPolygons(mPolygonFolder, mImageRootFolder);
 
-        scanForFolderRemoval(mPolygonFolder);
+        var rootCoordinates = mImageRootFolder.getCoordinates();
+        if (!rootCoordinates.isEmpty()) {
+            addPolygon(mPolygonFolder.getName(), rootCoordinates, mPolygonFolder);
+        }
 
-        for (var folder : mPolygonRemovals.keySet()) {
-            var parentFolder = mPolygonRemovals.get(folder);
-            parentFolder.getFeature().remove(folder);
+        for (var folder : mPolygonFolder.getFolders()) {
+            removeEmptyFolders(mPolygonFolder, folder);
         }
 
-        mRootFolder.getFeature().add(mPolygonFolder);
+        mRootFolder.addFolder(mPolygonFolder);
     }
 
-    public HashMap<String, Properties> getDirToDesc() {
-        return mDirToDesc;
+    /**
+     * Reads everything the placemark of the file needs that does not depend
+     * on the other files. Safe to call from several threads.
+     *
+     * @param file the file
+     * @return the analysis to pass to {@link #addPhoto(Analysis)}
+     * @throws ImageProcessingException
+     * @throws IOException
+     */
+    public Analysis analyze(File file) throws ImageProcessingException, IOException {
+        var photoInfo = getPhotoInfo(file);
+
+        boolean hasLocation = false;
+        if (photoInfo.hasExif()) {
+            mNumOfExif.increment();
+            hasLocation = photoInfo.hasGps() && !photoInfo.isZeroCoordinate();
+            if (hasLocation) {
+                mNumOfGps.increment();
+            }
+        } else {
+            throw new ImageProcessingException(String.format("E010 %s", file.getAbsolutePath()));
+        }
+
+        var exifDate = photoInfo.getDate();
+        File iconFile = null;
+        File thumbFile = null;
+        String desc = null;
+        String[] balloonData = null;
+
+        if (hasLocation || mTaskSource.isIncludeNullCoordinate()) {
+            if (mTaskPhoto.getReference() == TaskPhoto.Reference.THUMBNAIL) {
+                thumbFile = new File(mThumbsDir, photoInfo.getContentId() + ".jpg");
+            }
+
+            if (mIconAtlas != null) {
+                iconFile = mIconAtlas.getStagedFile(photoInfo.getContentId());
+            } else if (mTaskPlacemark.isSymbolAsPhoto()) {
+                iconFile = new File(mThumbsDir, photoInfo.getContentId() + "_icon.jpg");
+            }
+
+            if (mBalloonTemplate != null) {
+                balloonData = getBalloonData(file, photoInfo, exifDate, thumbFile);
+            } else {
+                desc = getPlacemarkDescription(file, photoInfo, exifDate, thumbFile);
+            }
+        }
+
+        return new Analysis(file, photoInfo, exifDate, hasLocation, thumbFile, iconFile, desc, balloonData);
     }
 
-    public String getKmlString() {
-        return mKmlString;
+    /**
+     * Waits for the queued thumbnails and adds the rendering statistics to
+     * the summary.
+     *
+     * @return the source files whose thumbnails could not be rendered
+     * @throws InterruptedException
+     */
+    public List<File> awaitThumbnails() throws InterruptedException {
+        if (mThumbnailRenderer == null) {
+            return List.of();
+        }
+
+        var failedFiles = mThumbnailRenderer.awaitCompletion();
+        putSummary(mBundle.getString("status_thumbnails"), String.valueOf(mThumbnailRenderer.getNumOfRendered()));
+        putSummary(mBundle.getString("status_thumbnail_queue"), String.valueOf(mThumbnailRenderer.getMaxQueueDepth()));
+        putSummary(mBundle.getString("status_thumbnail_rate"), "%.1f".formatted(mThumbnailRenderer.getThroughput()));
+        putSummary(mBundle.getString("status_thumbnail_store"), String.valueOf(ThumbnailStore.getInstance().getHits() - mThumbnailStoreHits));
+        var memoryGovernor = mThumbnailRenderer.getMemoryGovernor();
+        putSummary(mBundle.getString("status_memory_wait"), "%.1f s (%d)".formatted(memoryGovernor.getWaitSeconds(), memoryGovernor.getNumOfWaits()));
+
+        if (mIconAtlas != null) {
+            try {
+                putSummary(mBundle.getString("status_icon_atlases"), String.valueOf(mIconAtlas.compose(mIconSpec.borderColor())));
+                if (mKmzWriter != null) {
+                    for (var file : mIconAtlas.getFiles()) {
+                        mKmzWriter.submitStored("%s/%s".formatted(mThumbsDir.getName(), file.getName()), file);
+                    }
+                }
+            } catch (IOException ex) {
+                mInputOutput.getErr().println(ex.getMessage());
+            }
+        }
+
+        return failedFiles;
     }
 
-    public void saveToFile(int numOfFiles) {
-        if (mTask.getPath().isDrawPath() && hasPaths()) {
-            addPath();
+    /**
+     * Stops the thumbnail rendering and saves the manifest of the thumbnails
+     * rendered so far.
+     */
+    public void cancelThumbnails() {
+        if (mThumbnailRenderer != null) {
+            mThumbnailRenderer.cancel();
+            if (mIconAtlas != null) {
+                mIconAtlas.dispose();
+            }
 
-            if (mPathFolder != null && !mPathFolder.getFeature().isEmpty()) {
-                mRootFolder.getFeature().add(mPathFolder);
+            try {
+                mThumbnailManifest.save();
+            } catch (IOException ex) {
+                mInputOutput.getErr().println(ex.getMessage());
             }
+        }
+    }
 
-            if (mPathGapFolder != null && !mPathGapFolder.getFeature().isEmpty()) {
-                mRootFolder.getFeature().add(mPathGapFolder);
+    /**
+     * Closes the spools, the document can not be saved after this. An archive
+     * that was not completed is removed, as is the document packaged in it.
+     */
+    public void dispose() {
+        if (mKmzWriter != null) {
+            mKmzWriter.abort();
+            mKmzWriter = null;
+        }
+
+        if (mKmz && mDocumentFile != null) {
+            FileUtils.deleteQuietly(mDocumentFile);
+        }
+
+        for (var spool : new KmlWriter[]{mSpool, mStyleSpool}) {
+            if (spool != null) {
+                try {
+                    spool.close();
+                } catch (IOException ex) {
+                    //nvm, removed on exit
+                }
             }
         }
+    }
 
+    public Map<String, Properties> getDirToDesc() {
+        return mDirToDesc;
+    }
+
+    /**
+     * @return the saved document, or a note if it is too large to display,
+     * null if nothing was saved
+     */
+    public String getKmlString() {
+        return mKmlString;
+    }
+
+    /**
+     * Adds a row to the summary printed by {@link #saveToFile(int)}.
+     *
+     * @param label the label
+     * @param value the value
+     */
+    public void putSummary(String label, String value) {
+        mSummary.put(label, value);
+    }
+
+    public void saveToFile(int numOfFiles) {
         if (isUsingThumbnails()) {
             mOutputHelper.println(OutputLineMode.OK, String.format(mBundle.getString("stored_thumbnails"), mThumbsDir.getAbsolutePath()));
         }
 
         try {
-            var stringWriter = new StringWriter();
-            mKml.marshal(stringWriter);
-            mKmlString = stringWriter.toString();
+            if (mTask.getPath().isDrawPath() && hasPaths()) {
+                addPath();
+
+                if (!mPathFolder.isEmpty()) {
+                    mRootFolder.addFolder(mPathFolder);
+                }
 
-            mKmlString = StringUtils.replaceEach(mKmlString,
-                    new String[]{"&lt;", "&gt;"},
-                    new String[]{"<", ">"});
+                if (!mPathGapFolder.isEmpty()) {
+                    mRootFolder.addFolder(mPathGapFolder);
+                }
+            }
+
+            if (mClusters != null) {
+                var clustersFolder = new KmlFolder(mBundle.getString("clusters"), null);
+                var stylesHref = mPlacemarkDir == null ? "" : "%s/%s".formatted(mPlacemarkDir.getName(), STYLES_FILE_NAME);
+                int numOfClusters = mClusters.write(mSpool, clustersFolder, mStyles, stylesHref, count
+                        -> count == 1 ? mBundle.getString("cluster_name_one") : mBundle.getString("cluster_name").formatted(count)
+                );
+                putSummary(mBundle.getString("status_clusters"), String.valueOf(numOfClusters));
+                mRootFolder.addFolder(clustersFolder);
+            }
+
+            if (mRegionTiles != null) {
+                putSummary(mBundle.getString("status_region_tiles"), String.valueOf(mRegionTiles.write(mSpool)));
+            } else if (mFolderLinksFolder != null) {
+                putSummary(mBundle.getString("status_folder_files"), String.valueOf(writeFolderFiles()));
+            }
+
+            if (mPlacemarkDir != null) {
+                try (var writer = new KmlWriter(new File(mPlacemarkDir, STYLES_FILE_NAME))) {
+                    writer.startDocument(null);
+                    writeStyles(writer);
+                    writer.endDocument();
+                }
+            }
+
+            try (var writer = new KmlWriter(mDocumentFile)) {
+                writer.startDocument(null);
+                if (mPlacemarkDir == null) {
+                    writeStyles(writer);
+                }
+                mRootFolder.write(writer, mSpool);
+                writer.endDocument();
+            }
 
-            FileUtils.writeStringToFile(mDestinationFile, mKmlString, "utf-8");
+            //Read before the packaged document is removed
+            var kmlString = readKmlString();
+            if (mKmzWriter != null) {
+                putSummary(mBundle.getString("status_kmz_entries"), String.valueOf(writeKmz()));
+            }
+            mKmlString = kmlString;
+            putSummary(mBundle.getString("status_styles"), String.valueOf(mStyles.size()));
 
             String files = mBundle.getString("status_files");
             String exif = mBundle.getString("status_exif");
@@ -299,6 +506,9 @@ public class DocumentGenerator {
             rightPad = Math.max(rightPad, time.length());
             rightPad = Math.max(rightPad, error.length());
             rightPad = Math.max(rightPad, placemarks.length());
+            for (var label : mSummary.keySet()) {
+                rightPad = Math.max(rightPad, label.length());
+            }
             rightPad++;
 
             int leftPad = 8;
@@ -307,15 +517,19 @@ public class DocumentGenerator {
             var filesValue = String.valueOf(numOfFiles);
             sb.append(StringUtils.rightPad(files, rightPad)).append(":").append(StringUtils.leftPad(filesValue, leftPad)).append("\n");
 
-            var exifValue = String.valueOf(mNumOfExif);
+            var exifValue = String.valueOf(mNumOfExif.sum());
             sb.append(StringUtils.rightPad(exif, rightPad)).append(":").append(StringUtils.leftPad(exifValue, leftPad)).append("\n");
 
-            var coordinateValue = String.valueOf(mNumOfGps);
+            var coordinateValue = String.valueOf(mNumOfGps.sum());
             sb.append(StringUtils.rightPad(coordinate, rightPad)).append(":").append(StringUtils.leftPad(coordinateValue, leftPad)).append("\n");
 
-            var placemarksValue = String.valueOf(mNumOfPlacemarks);
+            var placemarksValue = String.valueOf(mNumOfPlacemarks.sum());
             sb.append(StringUtils.rightPad(placemarks, rightPad)).append(":").append(StringUtils.leftPad(placemarksValue, leftPad)).append("\n");
 
+            for (var entry : mSummary.entrySet()) {
+                sb.append(StringUtils.rightPad(entry.getKey(), rightPad)).append(":").append(StringUtils.leftPad(entry.getValue(), leftPad)).append("\n");
+            }
+
 //            String errorValue = String.valueOf(mNumOfErrors);
 //            summaryBuilder.append(StringUtils.rightPad(error, rightPad)).append(":").append(StringUtils.leftPad(errorValue, leftPad)).append("\n");
 //            mListener.onOperationFinished(summaryBuilder.toString(), mFiles.size());
@@ -323,10 +537,37 @@ public class DocumentGenerator {
 
         } catch (IOException ex) {
             mInputOutput.getErr().println(ex.getMessage());
+        } finally {
+            dispose();
         }
     }
 
-    public void start() {
+    /**
+     * Prepares the document and the thumbnail rendering.
+     *
+     * @throws IOException if the spools could not be created
+     */
+    public void start() throws IOException {
+        if (mTaskPlacemark.isCluster()) {
+            mClusters = new PlacemarkClusters(mTaskPlacemark.getClusterLevel());
+        }
+
+        if (mPlacemarkDir != null) {
+            FileUtils.forceMkdir(mPlacemarkDir);
+        }
+
+        if (mKmz) {
+            //The document is packaged as doc.kml, the thumbnails are added as they are rendered
+            mDocumentFile = File.createTempFile("mapollage", ".kml");
+            mKmzWriter = new KmzWriter(getKmzPartFile());
+        } else {
+            mDocumentFile = mDestinationFile;
+        }
+
+        if (mTaskPlacemark.isRegionTiles()) {
+            mRegionTiles = new RegionTiles(mPlacemarkDir, mTaskPlacemark.getRegionTileCapacity(), mTaskPlacemark.getRegionMaxDepth());
+        }
+
         if (isUsingThumbnails()) {
             mThumbsDir = new File(mDestinationFile.getParent() + String.format("/%s-thumbnails", FilenameUtils.getBaseName(mDestinationFile.getAbsolutePath())));
             try {
@@ -334,9 +575,46 @@ public class DocumentGenerator {
             } catch (IOException ex) {
                 mInputOutput.getErr().println(ex.getMessage());
             }
+            mThumbsHref = mPlacemarkDir == null ? mThumbsDir.getName() : "../" + mThumbsDir.getName();
+            mThumbnailSpec = mTaskPhoto.getThumbnailSpec();
+            mIconSpec = getIconSpec();
+            if (mTaskPlacemark.isSymbolAsPhoto() && mTaskPlacemark.isIconAtlas()) {
+                try {
+                    mIconAtlas = new IconAtlas(mThumbsDir, mIconSpec.size());
+                } catch (IOException ex) {
+                    //Fall back to one file per icon
+                    mInputOutput.getErr().println(ex.getMessage());
+                }
+            }
+            mThumbnailManifest = new ThumbnailManifest(mThumbsDir);
+            mThumbnailRenderer = new ThumbnailRenderer(mTaskPhoto.getThumbnailThreads(), mThumbnailManifest);
+            if (mKmzWriter != null) {
+                mThumbnailRenderer.setRenditionListener(file -> {
+                    //Staged atlas icons are packaged as sheets
+                    if (mThumbsDir.equals(file.getParentFile())) {
+                        mKmzWriter.submitStored("%s/%s".formatted(mThumbsDir.getName(), file.getName()), file);
+                    }
+                });
+            }
+            mThumbnailStoreHits = ThumbnailStore.getInstance().getHits();
+        }
+        mSpool = KmlWriter.createSpool();
+        mStyleSpool = KmlWriter.createSpool();
+        mStyles = new KmlStyles(mStyleSpool, mBalloonTemplate == null ? "$[description]" : mBalloonTemplate.getText());
+        mRootFolder = new KmlFolder(mTask.getName(), true);
+        mImageRootFolder = new KmlFolder(Dict.IMAGES.toString(), null);
+        if (mRegionTiles != null) {
+            //The folders are still kept, for the polygons
+            long position = mSpool.getPosition();
+            mSpool.writeNetworkLink(Dict.IMAGES.toString(), "%s/%s".formatted(mPlacemarkDir.getName(), RegionTiles.ROOT_FILE_NAME));
+            mRootFolder.addPlacemark(position, mSpool.getPosition() - position);
+        } else if (mPlacemarkDir != null) {
+            //Short runs, so that the folders can be split between files
+            mImageRootFolder.setMaxRunLength(getMaxFileLength() / 16);
+            mFolderLinksFolder = mRootFolder.addFolder(Dict.IMAGES.toString(), null);
+        } else {
+            mRootFolder.addFolder(mImageRootFolder);
         }
-        mRootFolder = mDocument.createAndAddFolder().withName(getSafeXmlString(mTask.getName())).withOpen(true);
-        mImageRootFolder = mRootFolder.createAndAddFolder().withName(Dict.IMAGES.toString());
 
         var href = "<a href=\"https://trixon.se/mapollage/\">Mapollage</a>";
         var description = "%s<p>%s %s, %s</p>".formatted(
@@ -344,16 +622,16 @@ public class DocumentGenerator {
                 Dict.MADE_WITH.toString(),
                 href,
                 LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH.mm.ss")));
-        mRootFolder.setDescription(getSafeXmlString(description));
+        mRootFolder.setDescription(description);
 
 //        mListener.onOperationProcessingStarted();
     }
 
-    private void addPath() {
+    private void addPath() throws IOException {
         Collections.sort(mLineNodes, Comparator.comparing(LineNode::getDate));
 
-        mPathFolder = KmlFactory.createFolder().withName(Dict.Geometry.PATH.toString());
-        mPathGapFolder = KmlFactory.createFolder().withName(Dict.Geometry.PATH_GAP.toString());
+        mPathFolder = new KmlFolder(Dict.Geometry.PATH.toString(), null);
+        mPathGapFolder = new KmlFolder(Dict.Geometry.PATH_GAP.toString(), null);
 
         var pattern = getPattern(mTaskPath.getSplitBy());
         var dateFormat = new SimpleDateFormat(pattern);
@@ -370,20 +648,9 @@ public class DocumentGenerator {
         //Add paths
         for (var nodes : map.values()) {
             if (nodes.size() > 1) {
-                var pathPlacemark = mPathFolder
-                        .createAndAddPlacemark()
-                        .withName(LineNode.getName(nodes));
-                var pathStyle = pathPlacemark.createAndAddStyle();
-                pathStyle.createAndSetLineStyle()
-                        .withColor(pathColor)
-                        .withWidth(mTaskPath.getWidth());
-
-                var line = pathPlacemark
-                        .createAndSetLineString()
-                        .withExtrude(false)
-                        .withTessellate(true);
-
-                nodes.forEach(n -> line.addToCoordinates(n.getLon(), n.getLat()));
+                var points = new ArrayList<Point2D.Double>();
+                nodes.forEach(n -> points.add(new Point2D.Double(n.getLon(), n.getLat())));
+                addPathPlacemark(LineNode.getName(nodes), pathColor, points, mPathFolder);
             }
         }
 
@@ -391,97 +658,97 @@ public class DocumentGenerator {
         ArrayList<LineNode> previousNodes = null;
         for (var nodes : map.values()) {
             if (previousNodes != null) {
-                var pathPlacemark = mPathGapFolder.createAndAddPlacemark()
-                        .withName(LineNode.getName(previousNodes, nodes));
-
-                var pathStyle = pathPlacemark.createAndAddStyle();
-                pathStyle.createAndSetLineStyle()
-                        .withColor(pathGapColor)
-                        .withWidth(mTaskPath.getWidth());
-
-                var line = pathPlacemark
-                        .createAndSetLineString()
-                        .withExtrude(false)
-                        .withTessellate(true);
-
                 var prevLast = previousNodes.get(previousNodes.size() - 1);
                 var currentFirst = nodes.get(0);
+                var points = List.of(
+                        new Point2D.Double(prevLast.getLon(), prevLast.getLat()),
+                        new Point2D.Double(currentFirst.getLon(), currentFirst.getLat())
+                );
 
-                line.addToCoordinates(prevLast.getLon(), prevLast.getLat());
-                line.addToCoordinates(currentFirst.getLon(), currentFirst.getLat());
+                addPathPlacemark(LineNode.getName(previousNodes, nodes), pathGapColor, points, mPathGapFolder);
             }
 
             previousNodes = nodes;
         }
     }
 
-    private void addPolygon(String name, ArrayList<Coordinate> coordinates, Folder polygonFolder) {
-        var inputs = new ArrayList<Point2D.Double>();
-        coordinates.forEach(coordinate -> {
-            inputs.add(new Point2D.Double(coordinate.getLongitude(), coordinate.getLatitude()));
-        });
-
-        try {
-            var convexHull = GrahamScan.getConvexHullDouble(inputs);
-            var placemark = polygonFolder
-                    .createAndAddPlacemark()
-                    .withName(name);
-
-            var style = placemark.createAndAddStyle();
-            style.createAndSetLineStyle()
-                    .withColor("00000000")
-                    .withWidth(0.0);
-
-            style.createAndSetPolyStyle()
-                    .withColor("ccffffff")
-                    .withColorMode(ColorMode.RANDOM);
+    private void addPathPlacemark(String name, String color, List<Point2D.Double> points, KmlFolder folder) throws IOException {
+        long position = mSpool.getPosition();
+        mSpool.startPlacemark(name);
+        mSpool.startStyle(null);
+        mSpool.writeLineStyle(color, mTaskPath.getWidth());
+        mSpool.endStyle();
+        mSpool.writeLineString(points);
+        mSpool.endPlacemark();
 
-            var polygon = placemark.createAndSetPolygon();
-            var boundary = polygon.createAndSetOuterBoundaryIs();
-            var linearRing = boundary.createAndSetLinearRing();
-
-            convexHull.forEach(node -> {
-                linearRing.addToCoordinates(node.x, node.y);
+        folder.addPlacemark(position, mSpool.getPosition() - position);
+    }
 
-            });
+    private void addPolygon(String name, List<Point2D.Double> coordinates, KmlFolder polygonFolder) throws IOException {
+        try {
+            var convexHull = GrahamScan.getConvexHullDouble(coordinates);
+
+            long position = mSpool.getPosition();
+            mSpool.startPlacemark(name);
+            mSpool.startStyle(null);
+            mSpool.writeLineStyle("00000000", 0.0);
+            mSpool.writePolyStyle("ccffffff", true);
+            mSpool.endStyle();
+            mSpool.writePolygon(convexHull);
+            mSpool.endPlacemark();
+
+            polygonFolder.addPlacemark(position, mSpool.getPosition() - position);
         } catch (IllegalArgumentException e) {
             System.err.println(e);
         }
     }
 
-    private void addPolygons(Folder polygonParent, List<Feature> features) {
-        for (var feature : features) {
-            if (feature instanceof Folder folder) {
-                if (folder != mPathFolder && folder != mPathGapFolder && folder != mPolygonFolder) {
-                    var polygonFolder = polygonParent.createAndAddFolder().withName(folder.getName()).withOpen(true);
-                    mFolderPolygonInputs.put(polygonFolder, new ArrayList<>());
-                    addPolygons(polygonFolder, folder.getFeature());
+    private void addPolygons(KmlFolder polygonParent, KmlFolder folder) throws IOException {
+        for (var subFolder : folder.getFolders()) {
+            var polygonFolder = polygonParent.addFolder(subFolder.getName(), true);
+            addPolygons(polygonFolder, subFolder);
+            addPolygon(subFolder.getName(), subFolder.getCoordinates(), polygonParent);
+        }
+    }
 
-                    if (mFolderPolygonInputs.get(polygonFolder) != null) {
-                        addPolygon(folder.getName(), mFolderPolygonInputs.get(polygonFolder), polygonParent);
-                    }
-                }
-            }
+    private String colorConverter(String s) {
+        var c = java.awt.Color.decode("#" + s);
+        return GraphicsHelper.colorToAABBGGRR(c, "");
+    }
 
-            if (feature instanceof Placemark placemark) {
-                var point = (Point) placemark.getGeometry();
-                mFolderPolygonInputs.computeIfAbsent(polygonParent, k -> new ArrayList<>()).addAll(point.getCoordinates());
+    /**
+     * The values of the balloon template fields, in the order of
+     * {@link BalloonTemplate#getFieldNames()}.
+     */
+    private String[] getBalloonData(File file, PhotoInfo photoInfo, Date exifDate, File thumbFile) throws IOException {
+        var values = new ArrayList<String>();
+
+        for (var segment : mBalloonTemplate.getSegments()) {
+            if (segment == DescriptionSegment.PHOTO) {
+                var dimension = getDescPhotoDimension(photoInfo);
+                values.add(getImagePath(file, thumbFile));
+                values.add(String.valueOf(dimension.width));
+                values.add(String.valueOf(dimension.height));
+            } else {
+                values.add(Objects.toString(getSegmentValue(segment, file, photoInfo, exifDate, thumbFile), ""));
             }
         }
 
-        var rootCoordinates = mFolderPolygonInputs.get(mPolygonFolder);
-        if (polygonParent == mPolygonFolder && rootCoordinates != null) {
-            addPolygon(mPolygonFolder.getName(), rootCoordinates, polygonParent);
-        }
+        return values.toArray(String[]::new);
     }
 
-    private String colorConverter(String s) {
-        var c = java.awt.Color.decode("#" + s);
-        return GraphicsHelper.colorToAABBGGRR(c, "");
+    private String getDescPhoto(File sourceFile, PhotoInfo photoInfo, File thumbFile) throws IOException {
+        var dimension = getDescPhotoDimension(photoInfo);
+        var imageTagFormat = "<p><img src='%s' width='%d' height='%d'></p>";
+
+        String imageTag = String.format(imageTagFormat, getImagePath(sourceFile, thumbFile), dimension.width, dimension.height);
+
+        return imageTag;
     }
 
-    private String getDescPhoto(File sourceFile, int orientation) throws IOException {
-        var scaler = new Scaler(new Dimension(mPhotoInfo.getOriginalDimension()));
+    private Dimension getDescPhotoDimension(PhotoInfo photoInfo) throws IOException {
+        var scaler = new Scaler(new Dimension(photoInfo.getOriginalDimension()));
+        int orientation = photoInfo.getOrientation();
         boolean thumbRef = mTaskPhoto.getReference() == TaskPhoto.Reference.THUMBNAIL;
         boolean portrait = (orientation == 6 || orientation == 8) && thumbRef;
 
@@ -496,38 +763,37 @@ public class DocumentGenerator {
         }
 
         var newDimension = scaler.getDimension();
-        var imageTagFormat = "<p><img src='%s' width='%d' height='%d'></p>";
 
         int width = portrait ? newDimension.height : newDimension.width;
         int height = portrait ? newDimension.width : newDimension.height;
 
-        String imageTag = String.format(imageTagFormat, getImagePath(sourceFile), width, height);
-
-        return imageTag;
+        return new Dimension(width, height);
     }
 
-    private String getExternalDescription(File file) {
+    private DescriptionTemplate getExternalTemplate(File file) {
         var p = mDirToDesc.get(file.getParent());
         var key = FilenameUtils.getBaseName(file.getName());
         String desc = p.getProperty(key);
-        if (desc == null) {
-            if (mTaskDescription.isDefaultTo()) {
-                if (mTaskDescription.getDefaultMode() == TaskDescription.DescriptionMode.CUSTOM) {
-                    desc = mTaskDescription.getCustomValue();
-                } else if (mTaskDescription.getDefaultMode() == TaskDescription.DescriptionMode.STATIC) {
-                    desc = getStaticDescription();
-                }
-            } else {
-                desc = "&nbsp;";
-            }
+        if (desc != null) {
+            return new DescriptionTemplate(desc);
         }
 
-        return desc;
+        if (mTaskDescription.isDefaultTo()) {
+            if (mTaskDescription.getDefaultMode() == TaskDescription.DescriptionMode.CUSTOM) {
+                return mCustomTemplate;
+            } else if (mTaskDescription.getDefaultMode() == TaskDescription.DescriptionMode.STATIC) {
+                return mStaticTemplate;
+            }
+
+            return null;
+        } else {
+            return new DescriptionTemplate("&nbsp;");
+        }
     }
 
-    private Folder getFolder(File file, Date date) {
+    private KmlFolder getFolder(File file, Date date) {
         String key;
-        Folder folder = null;
+        KmlFolder folder = null;
 
         switch (mTaskFolder.getFoldersBy()) {
             case DIR -> {
@@ -557,7 +823,7 @@ public class DocumentGenerator {
         return folder;
     }
 
-    private Folder getFolder(String key) {
+    private KmlFolder getFolder(String key) {
         key = Strings.CS.replace(key, "\\", "/");
         var levels = StringUtils.split(key, "/");
 
@@ -576,11 +842,25 @@ public class DocumentGenerator {
         return parent;
     }
 
-    private Folder getFolder(String key, Folder parent, String name) {
-        return mFolders.computeIfAbsent(key, k -> parent.createAndAddFolder().withName(getSafeXmlString(name)));
+    private KmlFolder getFolder(String key, KmlFolder parent, String name) {
+        return mFolders.computeIfAbsent(key, k -> parent.addFolder(name, null));
     }
 
-    private String getImagePath(File file) {
+    /**
+     * The icon rendition keeps the look of the balloon thumbnail, with the
+     * border scaled down but still visible.
+     */
+    private ThumbnailSpec getIconSpec() {
+        int iconSize = mTaskPlacemark.getIconSize();
+        int borderSize = mTaskPhoto.getThumbnailBorderSize();
+        if (borderSize > 0) {
+            borderSize = Math.max(1, Math.round((float) borderSize * iconSize / mTaskPhoto.getThumbnailSize()));
+        }
+
+        return new ThumbnailSpec(iconSize, borderSize, mTaskPhoto.getThumbnailBorderColor());
+    }
+
+    private String getImagePath(File file, File thumbFile) {
         String imageSrc;
 
         switch (mTaskPhoto.getReference()) {
@@ -591,12 +871,12 @@ public class DocumentGenerator {
                 imageSrc = String.format("%s%s", mTaskPhoto.getBaseUrlValue(), file.getName());
 
             case RELATIVE -> {
-                var relativePath = mDestinationFile.toPath().relativize(file.toPath());
+                var relativePath = mPlacemarkFile.toPath().relativize(file.toPath());
                 imageSrc = Strings.CS.replace(relativePath.toString(), "..", ".", 1);
             }
 
             case THUMBNAIL -> {
-                var thumbPath = mDestinationFile.toPath().relativize(mFileThumbMap.get(file).toPath());
+                var thumbPath = mPlacemarkFile.toPath().relativize(thumbFile.toPath());
                 imageSrc = Strings.CS.replace(thumbPath.toString(), "..", ".", 1);
             }
 
@@ -619,6 +899,14 @@ public class DocumentGenerator {
         return imageSrc;
     }
 
+    private File getKmzPartFile() {
+        return new File(mDestinationFile.getParentFile(), mDestinationFile.getName() + ".part");
+    }
+
+    private long getMaxFileLength() {
+        return mTaskFolder.getMaxFileSize() * 1024L * 1024L;
+    }
+
     private String getPattern(TaskPath.SplitBy splitBy) {
         return switch (splitBy) {
             case NONE ->
@@ -638,52 +926,30 @@ public class DocumentGenerator {
         };
     }
 
-    private String getPlacemarkDescription(File file, PhotoInfo photoInfo, Date exifDate) throws IOException {
-        var gpsDirectory = photoInfo.getGpsDirectory();
-        GpsDescriptor gpsDescriptor = null;
-        if (gpsDirectory != null) {
-            gpsDescriptor = new GpsDescriptor(gpsDirectory);
-        }
-
-        String desc = "";
-        switch (mTaskDescription.getMode()) {
+    private String getPlacemarkDescription(File file, PhotoInfo photoInfo, Date exifDate, File thumbFile) throws IOException {
+        var template = switch (mTaskDescription.getMode()) {
             case CUSTOM ->
-                desc = mTaskDescription.getCustomValue();
+                mCustomTemplate;
 
             case EXTERNAL ->
-                desc = getExternalDescription(file);
+                getExternalTemplate(file);
 
-            case NONE -> {
-            }
+            case NONE ->
+                null;
 
             case STATIC ->
-                desc = getStaticDescription();
-        }
-
-        if (mTaskDescription.getMode() != TaskDescription.DescriptionMode.NONE) {
-            if (StringUtils.containsIgnoreCase(desc, DescriptionSegment.PHOTO.toString())) {
-                desc = Strings.CS.replace(desc, DescriptionSegment.PHOTO.toString(), getDescPhoto(file, photoInfo.getOrientation()));
-            }
-
-            desc = Strings.CS.replace(desc, DescriptionSegment.FILENAME.toString(), file.getName());
-            desc = Strings.CS.replace(desc, DescriptionSegment.DATE.toString(), mDateFormatDate.format(exifDate));
-
-            if (gpsDirectory != null && gpsDescriptor != null) {
-                desc = Strings.CS.replace(desc, DescriptionSegment.ALTITUDE.toString(), gpsDescriptor.getGpsAltitudeDescription());
-                desc = Strings.CS.replace(desc, DescriptionSegment.COORDINATE.toString(), gpsDescriptor.getDegreesMinutesSecondsDescription());
-
-                String bearing = gpsDescriptor.getGpsDirectionDescription(GpsDirectory.TAG_DEST_BEARING);
-                desc = Strings.CS.replace(desc, DescriptionSegment.BEARING.toString(), bearing == null ? "" : bearing);
-            } else {
-                desc = Strings.CS.replace(desc, DescriptionSegment.ALTITUDE.toString(), "");
-                desc = Strings.CS.replace(desc, DescriptionSegment.COORDINATE.toString(), "");
-                desc = Strings.CS.replace(desc, DescriptionSegment.BEARING.toString(), "");
-            }
+                mStaticTemplate;
+        };
 
-            desc = getSafeXmlString(desc);
+        if (template == null) {
+            return null;
         }
 
-        return desc;
+        var builder = mDescriptionBuilder.get();
+        builder.setLength(0);
+        template.render(builder, segment -> getSegmentValue(segment, file, photoInfo, exifDate, thumbFile));
+
+        return builder.toString();
     }
 
     private String getPlacemarkName(File file, Date exifDate) {
@@ -714,12 +980,26 @@ public class DocumentGenerator {
         return name;
     }
 
-    private String getSafeXmlString(String s) {
-        if (StringUtils.containsAny(s, '<', '>', '&')) {
-            s = new StringBuilder("<![CDATA[").append(s).append("]]>").toString();
-        }
+    private String getSegmentValue(DescriptionSegment segment, File file, PhotoInfo photoInfo, Date exifDate, File thumbFile) throws IOException {
+        return switch (segment) {
+            case ALTITUDE ->
+                photoInfo.hasGps() ? photoInfo.getAltitudeDescription() : null;
+
+            case BEARING ->
+                photoInfo.hasGps() ? photoInfo.getBearingDescription() : null;
+
+            case COORDINATE ->
+                photoInfo.hasGps() ? photoInfo.getCoordinateDescription() : null;
 
-        return s;
+            case DATE ->
+                mDateFormatDate.get().format(exifDate);
+
+            case FILENAME ->
+                file.getName();
+
+            case PHOTO ->
+                getDescPhoto(file, photoInfo, thumbFile);
+        };
     }
 
     private String getStaticDescription() {
@@ -752,6 +1032,22 @@ public class DocumentGenerator {
         return builder.toString();
     }
 
+    private PhotoInfo getPhotoInfo(File file) throws ImageProcessingException, IOException {
+        var photoInfo = new PhotoInfo(file, mTask);
+
+        try {
+            photoInfo.init();
+        } catch (ImageProcessingException | IOException e) {
+            if (photoInfo.hasExif()) {
+                mNumOfExif.increment();
+            }
+
+            throw e;
+        }
+
+        return photoInfo;
+    }
+
     private boolean hasPaths() {
         return mLineNodes.size() > 1;
     }
@@ -760,16 +1056,126 @@ public class DocumentGenerator {
         return mTaskPlacemark.isSymbolAsPhoto() || mTaskPhoto.getReference() == TaskPhoto.Reference.THUMBNAIL;
     }
 
-    private void scanForFolderRemoval(Folder folder) {
-        for (var feature : folder.getFeature()) {
-            if (feature instanceof Folder subFolder) {
-                if (subFolder.getFeature().isEmpty()) {
-                    mPolygonRemovals.put(subFolder, folder);
+    private String readKmlString() {
+        if (mDocumentFile.length() > MAX_DISPLAY_BYTES) {
+            return mBundle.getString("kml_too_large").formatted(FileUtils.byteCountToDisplaySize(mDocumentFile.length()));
+        }
+
+        try {
+            return FileUtils.readFileToString(mDocumentFile, StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            return ex.getMessage();
+        }
+    }
+
+    private void removeEmptyFolders(KmlFolder parent, KmlFolder folder) {
+        if (folder.isEmpty()) {
+            parent.removeFolder(folder);
+        } else {
+            for (var subFolder : folder.getFolders()) {
+                removeEmptyFolders(folder, subFolder);
+            }
+        }
+    }
+
+    /**
+     * The per file result of the parallel analysis.
+     */
+    public record Analysis(File file, PhotoInfo photoInfo, Date date, boolean hasLocation, File thumbFile, File iconFile, String description, String[] balloonData) {
+
+    }
+
+    /**
+     * Writes each top folder to files of its own, and the placemarks directly
+     * in the image folder to files of their own, linked from the image folder
+     * of the document.
+     *
+     * @return the number of files
+     */
+    private int writeFolderFiles() throws IOException {
+        var oldFiles = mPlacemarkDir.listFiles((dir, name) -> name.endsWith(".kml"));
+        for (var file : oldFiles == null ? new File[0] : oldFiles) {
+            Files.deleteIfExists(file.toPath());
+        }
+
+        //File names are kept free of dots, which are used for the parts and the styles,
+        //and unique regardless of case
+        var fileBaseNames = new HashSet<String>();
+        fileBaseNames.add(FilenameUtils.getBaseName(STYLES_FILE_NAME).toLowerCase(Locale.ROOT));
+        var folders = new ArrayList<KmlFolder>();
+        folders.add(mImageRootFolder);
+        folders.addAll(mImageRootFolder.getFolders());
+        int numOfFiles = 0;
+
+        for (var folder : folders) {
+            var safeName = folder.getName().replaceAll("[^\\p{L}\\p{N}_-]+", "_");
+            var fileBaseName = safeName;
+            for (int i = 2; !fileBaseNames.add(fileBaseName.toLowerCase(Locale.ROOT)); i++) {
+                fileBaseName = "%s_%d".formatted(safeName, i);
+            }
+
+            boolean includeFolders = folder != mImageRootFolder;
+            var files = folder.writeFiles(mPlacemarkDir, fileBaseName, getMaxFileLength(), mSpool, includeFolders);
+            var bounds = folder.getBounds(includeFolders);
+            if (bounds != null) {
+                //A folder of a single place still needs an area to show up on screen
+                double lon = bounds.getCenterX();
+                double lat = bounds.getCenterY();
+                bounds.add(lon - FOLDER_LINK_MIN_SPAN / 2, lat - FOLDER_LINK_MIN_SPAN / 2);
+                bounds.add(lon + FOLDER_LINK_MIN_SPAN / 2, lat + FOLDER_LINK_MIN_SPAN / 2);
+            }
+
+            for (int i = 0; i < files.size(); i++) {
+                var name = i == 0 ? folder.getName() : "%s (%d)".formatted(folder.getName(), i + 1);
+                var href = "%s/%s".formatted(mPlacemarkDir.getName(), files.get(i).getName());
+                long position = mSpool.getPosition();
+                if (bounds == null) {
+                    mSpool.writeNetworkLink(name, href);
                 } else {
-                    scanForFolderRemoval(subFolder);
+                    //Loaded once the folder covers enough of the view
+                    mSpool.writeNetworkLink(name, href, bounds.getMaxY(), bounds.getMinY(), bounds.getMaxX(), bounds.getMinX(), FOLDER_LINK_MIN_LOD_PIXELS);
                 }
+                mFolderLinksFolder.addPlacemark(position, mSpool.getPosition() - position);
             }
+            numOfFiles += files.size();
         }
+
+        return numOfFiles;
     }
 
+    private int writeKmz() throws IOException {
+        //Google Earth opens the first KML of the archive
+        mKmzWriter.writeDeflated("doc.kml", mDocumentFile);
+
+        if (mPlacemarkDir != null) {
+            var files = mPlacemarkDir.listFiles((dir, name) -> name.endsWith(".kml"));
+            for (var file : files == null ? new File[0] : files) {
+                mKmzWriter.submitDeflated("%s/%s".formatted(mPlacemarkDir.getName(), file.getName()), file);
+            }
+        }
+
+        var kmzWriter = mKmzWriter;
+        mKmzWriter = null;
+        try {
+            kmzWriter.close();
+        } catch (IOException ex) {
+            Files.deleteIfExists(getKmzPartFile().toPath());
+            throw ex;
+        }
+        Files.move(getKmzPartFile().toPath(), mDestinationFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        if (mPlacemarkDir != null) {
+            //Packaged, nothing refers to it
+            FileUtils.deleteQuietly(mPlacemarkDir);
+        }
+
+        return kmzWriter.getNumOfEntries();
+    }
+
+    private void writeStyles(KmlWriter writer) throws IOException {
+        writer.copy(mStyleSpool, 0, mStyleSpool.getPosition());
+        if (mBalloonTemplate != null) {
+            writer.writeSchema(BalloonTemplate.SCHEMA_ID, mBalloonTemplate.getFieldNames());
+        }
+    }
 }
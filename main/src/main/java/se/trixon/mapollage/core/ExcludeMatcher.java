@@ -0,0 +1,279 @@
+/*
+ * Copyright 2026 Patrik Karlström <patrik@trixon.se>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.mapollage.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * The exclude patterns of a task compiled into one Aho-Corasick automaton.
+ * <p>
+ * Plain entries are matched as substrings of the path, as before. Entries
+ * prefixed with <code>glob:</code> or <code>regex:</code> are matched against
+ * the whole path.
+ *
+ * @author Patrik Karlström <patrik@trixon.se>
+ */
+public class ExcludeMatcher {
+
+    public static final int MATCH = -1;
+    private static final String GLOB_PREFIX = "glob:";
+    private static final String REGEX_PREFIX = "regex:";
+
+    private final boolean mCaseSensitive;
+    private final int[] mFail;
+    private final char[][] mKeys;
+    private final boolean[] mOutput;
+    private final Pattern[] mPatterns;
+    private final int[][] mTargets;
+
+    /**
+     * Compiles the <code>::</code> separated exclude patterns.
+     *
+     * @param excludePattern the patterns, may be blank
+     * @param caseSensitive
+     * @return the matcher
+     */
+    public static ExcludeMatcher compile(String excludePattern, boolean caseSensitive) {
+        var literals = new ArrayList<String>();
+        var patterns = new ArrayList<Pattern>();
+        int flags = caseSensitive ? 0 : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+
+        var entries = StringUtils.splitByWholeSeparator(excludePattern, "::");
+        if (entries != null) {
+            for (var entry : entries) {
+                if (entry.startsWith(GLOB_PREFIX)) {
+                    patterns.add(Pattern.compile(globToRegex(entry.substring(GLOB_PREFIX.length())), flags));
+                } else if (entry.startsWith(REGEX_PREFIX)) {
+                    patterns.add(Pattern.compile(entry.substring(REGEX_PREFIX.length()), flags));
+                } else if (!entry.isEmpty()) {
+                    literals.add(entry);
+                }
+            }
+        }
+
+        return new ExcludeMatcher(literals, patterns, caseSensitive);
+    }
+
+    /**
+     * Converts a glob to a regular expression. <code>*</code> and
+     * <code>?</code> do not cross directory boundaries, <code>**</code> does.
+     *
+     * @param glob
+     * @return the regular expression
+     */
+    public static String globToRegex(String glob) {
+        var sb = new StringBuilder("^");
+        boolean inGroup = false;
+
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '\\' -> {
+                    if (i + 1 < glob.length()) {
+                        sb.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+                    }
+                }
+                case '*' -> {
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        sb.append(".*");
+                        i++;
+                    } else {
+                        sb.append("[^/\\\\]*");
+                    }
+                }
+                case '?' ->
+                    sb.append("[^/\\\\]");
+                case '[' -> {
+                    sb.append('[');
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '!') {
+                        sb.append('^');
+                        i++;
+                    }
+                }
+                case '{' -> {
+                    sb.append("(?:");
+                    inGroup = true;
+                }
+                case '}' -> {
+                    sb.append(inGroup ? ")" : "\\}");
+                    inGroup = false;
+                }
+                case ',' ->
+                    sb.append(inGroup ? "|" : ",");
+                case ']', '-' ->
+                    sb.append(c);
+                default -> {
+                    if (Character.isLetterOrDigit(c)) {
+                        sb.append(c);
+                    } else {
+                        sb.append('\\').append(c);
+                    }
+                }
+            }
+        }
+
+        return sb.append('$').toString();
+    }
+
+    private ExcludeMatcher(ArrayList<String> literals, ArrayList<Pattern> patterns, boolean caseSensitive) {
+        mCaseSensitive = caseSensitive;
+        mPatterns = patterns.toArray(Pattern[]::new);
+
+        //Build the trie
+        var transitions = new ArrayList<TreeMap<Character, Integer>>();
+        var output = new ArrayList<Boolean>();
+        transitions.add(new TreeMap<>());
+        output.add(false);
+
+        for (var literal : literals) {
+            int state = 0;
+            for (int i = 0; i < literal.length(); i++) {
+                char c = fold(literal.charAt(i));
+                var next = transitions.get(state).get(c);
+                if (next == null) {
+                    next = transitions.size();
+                    transitions.get(state).put(c, next);
+                    transitions.add(new TreeMap<>());
+                    output.add(false);
+                }
+                state = next;
+            }
+            output.set(state, true);
+        }
+
+        int numOfStates = transitions.size();
+        mKeys = new char[numOfStates][];
+        mTargets = new int[numOfStates][];
+        mFail = new int[numOfStates];
+        mOutput = new boolean[numOfStates];
+
+        for (int state = 0; state < numOfStates; state++) {
+            var map = transitions.get(state);
+            mKeys[state] = new char[map.size()];
+            mTargets[state] = new int[map.size()];
+            int i = 0;
+            for (var entry : map.entrySet()) {
+                mKeys[state][i] = entry.getKey();
+                mTargets[state][i] = entry.getValue();
+                i++;
+            }
+            mOutput[state] = output.get(state);
+        }
+
+        //Breadth first failure links
+        var queue = new ArrayDeque<Integer>();
+        for (int target : mTargets[0]) {
+            mFail[target] = 0;
+            queue.add(target);
+        }
+
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (int i = 0; i < mKeys[state].length; i++) {
+                char c = mKeys[state][i];
+                int target = mTargets[state][i];
+                int fail = mFail[state];
+                int next;
+                while ((next = next(fail, c)) < 0 && fail != 0) {
+                    fail = mFail[fail];
+                }
+                mFail[target] = next < 0 || next == target ? 0 : next;
+                mOutput[target] |= mOutput[mFail[target]];
+                queue.add(target);
+            }
+        }
+    }
+
+    /**
+     * Feeds the characters to the automaton.
+     *
+     * @param state the state to start from, 0 at the beginning of a path
+     * @param s the characters
+     * @return the new state or {@link #MATCH} if a literal was found
+     */
+    public int advance(int state, CharSequence s) {
+        for (int i = 0, length = s.length(); i < length && state != MATCH; i++) {
+            state = advance(state, s.charAt(i));
+        }
+
+        return state;
+    }
+
+    /**
+     * Feeds one character to the automaton.
+     *
+     * @param state the current state
+     * @param c the character
+     * @return the new state or {@link #MATCH} if a literal was found
+     */
+    public int advance(int state, char c) {
+        if (state == MATCH) {
+            return MATCH;
+        }
+
+        c = fold(c);
+        int next;
+        while ((next = next(state, c)) < 0 && state != 0) {
+            state = mFail[state];
+        }
+        state = Math.max(next, 0);
+
+        return mOutput[state] ? MATCH : state;
+    }
+
+    public boolean hasPatterns() {
+        return mPatterns.length > 0;
+    }
+
+    public boolean isEmpty() {
+        return mKeys[0].length == 0 && mPatterns.length == 0;
+    }
+
+    public boolean matches(CharSequence path) {
+        return advance(0, path) == MATCH || matchesPatterns(path);
+    }
+
+    /**
+     * Matches the glob and regex entries only.
+     *
+     * @param path the whole path
+     * @return true if any of them matched
+     */
+    public boolean matchesPatterns(CharSequence path) {
+        for (var pattern : mPatterns) {
+            if (pattern.matcher(path).find()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private char fold(char c) {
+        return mCaseSensitive ? c : Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    private int next(int state, char c) {
+        int i = Arrays.binarySearch(mKeys[state], c);
+
+        return i < 0 ? -1 : mTargets[state][i];
+    }
+}
@@ -18,30 +18,22 @@ package se.trixon.mapollage.core;
 import com.drew.imaging.ImageProcessingException;
 import java.awt.Color;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.nio.file.FileVisitOption;
-import java.nio.file.FileVisitResult;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.PathMatcher;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.EnumSet;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Locale;
-import java.util.Properties;
 import java.util.ResourceBundle;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import org.apache.commons.io.IOCase;
+import java.util.function.Consumer;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.Strings;
+import org.apache.commons.lang3.time.DurationFormatUtils;
 import org.netbeans.api.progress.ProgressHandle;
 import org.openide.awt.StatusDisplayer;
 import org.openide.util.Cancellable;
@@ -122,47 +114,128 @@ public class Executor implements Runnable {
                 return;
             }
 
-            generateFileList();
+            var streaming = mTask.getSource().isStreaming();
+            var metadataCache = MetadataCache.getInstance();
+            int cacheHits = metadataCache.getHits();
+            int progress = 0;
+            FileFeed fileFeed = null;
 
-            if (mRunning.get() && !mFiles.isEmpty()) {
-                mOutputHelper.println(OutputLineMode.INFO, mBundle.getString("found_count").formatted(mFiles.size()));
-                var foldHandle = mMainFoldHandle.startFold(false);
-                mOutputHelper.println(OutputLineMode.STANDARD, String.join("\n", mFiles.stream().map(f -> f.getAbsolutePath()).toList()));
-                foldHandle.finish();
+            if (streaming) {
+                //Placemarks are added while the scan is still running
+                if (!startDocument()) {
+                    return;
+                }
+                fileFeed = startFileList();
+            } else {
+                generateFileList();
+                if (mRunning.get() && !mFiles.isEmpty()) {
+                    printFileList();
+                    mProgressHandle.switchToDeterminate(mFiles.size());
+                    if (!startDocument()) {
+                        return;
+                    }
+                    fileFeed = new FileFeed(mFiles);
+                }
+            }
+
+            if (fileFeed != null) {
+                //Analyze in parallel, add to the document in file order
+                int numOfThreads = getNumOfAnalyzeThreads();
+                var analyzeExecutor = Executors.newFixedThreadPool(numOfThreads);
+                var pendings = new ArrayDeque<Pending>();
+                boolean determinate = !streaming;
+
+                try {
+                    while (true) {
+                        while (pendings.size() < numOfThreads * 4) {
+                            var file = fileFeed.next(pendings.isEmpty());
+                            if (file == null) {
+                                break;
+                            }
+                            pendings.add(new Pending(file, analyzeExecutor.submit(() -> mDocumentGenerator.analyze(file))));
+                        }
+
+                        if (!determinate && fileFeed.isEnded()) {
+                            printFileList();
+                            mProgressHandle.switchToDeterminate(mFiles.size());
+                            mProgressHandle.progress(progress);
+                            determinate = true;
+                        }
+
+                        var pending = pendings.poll();
+                        if (pending == null) {
+                            break;
+                        }
 
-                mInputOutput.getOut().println("");
-                mOutputHelper.printSectionHeader(OutputLineMode.INFO, Dict.PROCESSING.toString(), null, null);
+                        var file = pending.file();
+                        mProgressHandle.progress(file.getName());
+                        try {
+                            TimeUnit.NANOSECONDS.sleep(1);
+                            mDocumentGenerator.addPhoto(pending.analysis().get());
+                        } catch (InterruptedException ex) {
+                            break;
+                        } catch (ExecutionException ex) {
+                            if (ex.getCause() instanceof ImageProcessingException e) {
+                                mErrorsImageProcessing.add(e.getMessage());
+                            } else if (ex.getCause() instanceof IOException) {
+                                mErrorsIO.add(file.getAbsolutePath());
+                            } else if (ex.getCause() instanceof RuntimeException e) {
+                                throw e;
+                            } else {
+                                throw new RuntimeException(ex.getCause());
+                            }
+                        } catch (IOException ex) {
+                            mErrorsIO.add(file.getAbsolutePath());
+                        }
 
-                mProgressHandle.switchToDeterminate(mFiles.size());
-                int progress = 0;
+                        if (Thread.interrupted()) {
+                            break;
+                        }
 
-                mDocumentGenerator.start();
+                        progress++;
+                        if (determinate) {
+                            mProgressHandle.progress(progress);
+                        }
+                    }
+                } catch (InterruptedException ex) {
+                    //Cancelled while waiting for the scan
+                } finally {
+                    analyzeExecutor.shutdownNow();
+                }
 
-                for (var file : mFiles) {
-                    mProgressHandle.progress(file.getName());
+                //The document is complete, let the thumbnails catch up
+                if (mRunning.get()) {
+                    mProgressHandle.switchToIndeterminate();
+                    mProgressHandle.progress(mBundle.getString("status_thumbnails"));
                     try {
-                        TimeUnit.NANOSECONDS.sleep(1);
+                        for (var file : mDocumentGenerator.awaitThumbnails()) {
+                            mErrorsIO.add(file.getAbsolutePath());
+                        }
                     } catch (InterruptedException ex) {
-                        break;
+                        Thread.currentThread().interrupt();
                     }
 
                     try {
-                        mDocumentGenerator.addPhoto(file);
-                    } catch (ImageProcessingException ex) {
-                        mErrorsImageProcessing.add(ex.getMessage());
+                        ThumbnailStore.getInstance().trim();
                     } catch (IOException ex) {
-                        mErrorsIO.add(file.getAbsolutePath());
+                        mInputOutput.getErr().println(ex.getMessage());
                     }
+                }
+                mDocumentGenerator.cancelThumbnails();
 
-                    if (Thread.interrupted()) {
-                        break;
+                if (mTask.getPath().isDrawPolygon()) {
+                    try {
+                        mDocumentGenerator.addPolygons();
+                    } catch (IOException ex) {
+                        mInputOutput.getErr().println(ex.getMessage());
                     }
-
-                    mProgressHandle.progress(++progress);
                 }
 
-                if (mTask.getPath().isDrawPolygon()) {
-                    mDocumentGenerator.addPolygons();
+                mDocumentGenerator.putSummary(mBundle.getString("status_metadata_cache"), "%d/%d".formatted(metadataCache.getHits() - cacheHits, progress));
+                try {
+                    metadataCache.save();
+                } catch (IOException ex) {
+                    mInputOutput.getErr().println(ex.getMessage());
                 }
             }
 
@@ -179,6 +252,7 @@ public class Executor implements Runnable {
                 mTask.setLastRun(System.currentTimeMillis());
                 StorageManager.save();
             }
+            mDocumentGenerator.dispose();
 
             if (mRunning.get()) {
                 jobEnded(OutputLineMode.OK, Dict.DONE.toString());
@@ -222,36 +296,63 @@ public class Executor implements Runnable {
     }
 
     private void generateFileList() {
+        generateFileList(null);
+    }
+
+    private void generateFileList(Consumer<File> fileListener) {
         var source = mTask.getSource();
         mInputOutput.getOut().println();
         mOutputHelper.printSectionHeader(OutputLineMode.INFO, Dict.GENERATING_FILELIST.toString(), "", source.getDir().getAbsolutePath());
 
-        var pathMatcher = source.getPathMatcher();
-        var fileVisitOptions = source.isFollowLinks() ? EnumSet.of(FileVisitOption.FOLLOW_LINKS) : EnumSet.noneOf(FileVisitOption.class);
-        var sourceDir = source.getDir();
+        var fileScanner = new FileScanner(mTask, mInputOutput, mDocumentGenerator.getDirToDesc(), mRunning);
+        if (fileListener != null) {
+            fileScanner.setFileListener(fileListener);
+        }
+
+        ScanIndex scanIndex = null;
+        if (source.isScanIndex()) {
+            scanIndex = ScanIndex.open(source.getDir(), source.isScanIndexVerify());
+            fileScanner.setScanIndex(scanIndex);
+        }
+
+        long startTime = System.currentTimeMillis();
+        try {
+            mFiles.addAll(fileScanner.scan());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (scanIndex != null && mRunning.get()) {
+            long scanMillis = System.currentTimeMillis() - startTime;
+            long fullScanMillis = scanIndex.getFullScanMillis();
+            int numOfDirs = scanIndex.getHits() + scanIndex.getMisses();
+
+            mDocumentGenerator.putSummary(mBundle.getString("status_scan_index"), "%d/%d".formatted(scanIndex.getHits(), numOfDirs));
+            if (scanIndex.getHits() > 0 && fullScanMillis > scanMillis) {
+                mDocumentGenerator.putSummary(mBundle.getString("status_scan_saved"), DurationFormatUtils.formatDuration(fullScanMillis - scanMillis, "HH:mm:ss"));
+            }
+            if (source.isScanIndexVerify()) {
+                mDocumentGenerator.putSummary(mBundle.getString("status_scan_mismatches"), String.valueOf(scanIndex.getMismatches()));
+            }
 
-        if (sourceDir.isDirectory()) {
-            var fileVisitor = new FileVisitor();
             try {
-                if (source.isRecursive()) {
-                    Files.walkFileTree(sourceDir.toPath(), fileVisitOptions, Integer.MAX_VALUE, fileVisitor);
-                } else {
-                    Files.walkFileTree(sourceDir.toPath(), fileVisitOptions, 1, fileVisitor);
-                }
+                scanIndex.save(scanMillis);
             } catch (IOException ex) {
                 mInputOutput.getErr().println(ex.getMessage());
             }
-        } else if (sourceDir.isFile() && pathMatcher.matches(sourceDir.toPath().getFileName())) {
-            mFiles.add(sourceDir);
         }
 
         if (mFiles.isEmpty()) {
             mInputOutput.getOut().println(Dict.FILELIST_EMPTY.toString());
-        } else {
-            Collections.sort(mFiles);
         }
     }
 
+    private int getNumOfAnalyzeThreads() {
+        int numOfThreads = mTask.getPhoto().getAnalyzeThreads();
+
+        return numOfThreads < 1 ? Runtime.getRuntime().availableProcessors() : numOfThreads;
+    }
+
     private void jobEnded(OutputLineMode outputLineMode, String action) {
         mMainFoldHandle.silentFinish();
         mStatusDisplayer.setStatusText(action);
@@ -269,105 +370,120 @@ public class Executor implements Runnable {
         foldHandle.finish();
     }
 
-    public class FileVisitor extends SimpleFileVisitor<Path> {
+    private void offer(BlockingQueue<File> queue, File file) {
+        try {
+            while (mRunning.get() && !queue.offer(file, 100, TimeUnit.MILLISECONDS)) {
+                //Wait for the executor, unless cancelled
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-        private final Properties mDefaultDescProperties = new Properties();
-        private final HashMap<String, Properties> mDirToDesc;
-        private final String[] mExcludePatterns;
-        private final String mExternalFileValue;
-        private final PathMatcher mPathMatcher;
-        private final boolean mUseExternalDescription;
+    private void printFileList() {
+        if (mFiles.isEmpty()) {
+            return;
+        }
 
-        public FileVisitor() {
-            mPathMatcher = mTask.getSource().getPathMatcher();
-            mExcludePatterns = StringUtils.split(mTask.getSource().getExcludePattern(), "::");
-            mDirToDesc = mDocumentGenerator.getDirToDesc();
+        mOutputHelper.println(OutputLineMode.INFO, mBundle.getString("found_count").formatted(mFiles.size()));
+        var foldHandle = mMainFoldHandle.startFold(false);
+        mOutputHelper.println(OutputLineMode.STANDARD, String.join("\n", mFiles.stream().map(f -> f.getAbsolutePath()).toList()));
+        foldHandle.finish();
 
-            var mode = mTask.getDescription().getMode();
-            mUseExternalDescription = mode == TaskDescription.DescriptionMode.EXTERNAL;
-            mExternalFileValue = mTask.getDescription().getExternalFileValue();
+        mInputOutput.getOut().println("");
+        mOutputHelper.printSectionHeader(OutputLineMode.INFO, Dict.PROCESSING.toString(), null, null);
+    }
 
-            if (mode == TaskDescription.DescriptionMode.EXTERNAL) {
-                try {
-                    var file = new File(mTask.getSource().getDir(), mExternalFileValue);
-                    if (file.isFile()) {
-                        mDefaultDescProperties.load(new InputStreamReader(new FileInputStream(file), Charset.defaultCharset()));
-                    }
-                } catch (IOException ex) {
-                    // nvm
-                }
-            }
+    private boolean startDocument() {
+        try {
+            mDocumentGenerator.start();
+
+            return true;
+        } catch (IOException ex) {
+            mInputOutput.getErr().println(ex.getMessage());
+            jobEnded(OutputLineMode.ERROR, Dict.FAILED.toString());
+
+            return false;
         }
+    }
 
-        @Override
-        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
-            if (mExcludePatterns != null) {
-                for (var excludePattern : mExcludePatterns) {
-                    if (IOCase.SYSTEM.isCaseSensitive()) {
-                        if (Strings.CS.contains(dir.toString(), excludePattern)) {
-                            return FileVisitResult.SKIP_SUBTREE;
-                        }
-                    } else {
-                        if (Strings.CI.contains(dir.toString(), excludePattern)) {
-                            return FileVisitResult.SKIP_SUBTREE;
-                        }
-                    }
-                }
+    /**
+     * Scans on a thread of its own, handing the files over through a bounded
+     * queue. The scan waits while the queue is full.
+     */
+    private FileFeed startFileList() {
+        var queue = new ArrayBlockingQueue<File>(Runtime.getRuntime().availableProcessors() * 64);
+        var fileFeed = new FileFeed(queue);
+
+        var thread = new Thread(() -> {
+            try {
+                generateFileList(file -> offer(queue, file));
+            } finally {
+                //Published to the executor thread by the queue
+                offer(queue, FileFeed.END);
             }
+        }, "FileScanner");
+        thread.setDaemon(true);
+        thread.start();
 
-            String[] filePaths = dir.toFile().list();
-            mInputOutput.getOut().println(dir.toString());
-            if (filePaths != null && filePaths.length > 0) {
-                if (mUseExternalDescription) {
-                    var p = new Properties(mDefaultDescProperties);
+        return fileFeed;
+    }
 
-                    try {
-                        var file = new File(dir.toFile(), mExternalFileValue);
-                        if (file.isFile()) {
-                            p.load(new InputStreamReader(new FileInputStream(file), Charset.defaultCharset()));
-                        }
-                    } catch (IOException ex) {
-                        // nvm
-                    }
+    /**
+     * The files to process, from the scanned list or from a running scan.
+     */
+    private static class FileFeed {
 
-                    mDirToDesc.put(dir.toFile().getAbsolutePath(), p);
-                }
+        private static final File END = new File("");
 
-                for (var fileName : filePaths) {
-                    try {
-                        TimeUnit.NANOSECONDS.sleep(1);
-                    } catch (InterruptedException ex) {
-                        return FileVisitResult.TERMINATE;
-                    }
+        private boolean mEnded;
+        private final Iterator<File> mIterator;
+        private final BlockingQueue<File> mQueue;
 
-                    var file = new File(dir.toFile(), fileName);
-                    if (file.isFile() && mPathMatcher.matches(new File(file.getAbsolutePath().toLowerCase(Locale.ROOT)).toPath().getFileName())) {
-                        boolean exclude = false;
-                        if (mExcludePatterns != null) {
-                            for (String excludePattern : mExcludePatterns) {
-                                if (Strings.CS.contains(file.getAbsolutePath(), excludePattern)) {
-                                    exclude = true;
-                                    break;
-                                }
-                            }
-                        }
+        public FileFeed(BlockingQueue<File> queue) {
+            mIterator = null;
+            mQueue = queue;
+        }
 
-                        if (!exclude) {
-                            mFiles.add(file);
-                        }
-                    }
+        public FileFeed(List<File> files) {
+            mIterator = files.iterator();
+            mQueue = null;
+        }
+
+        public boolean isEnded() {
+            return mEnded;
+        }
+
+        /**
+         * @param wait true to wait for the scan
+         * @return the next file, null if there is none yet or the files have
+         * ended
+         * @throws InterruptedException
+         */
+        public File next(boolean wait) throws InterruptedException {
+            if (mEnded) {
+                return null;
+            } else if (mIterator != null) {
+                if (mIterator.hasNext()) {
+                    return mIterator.next();
                 }
+                mEnded = true;
+
+                return null;
             }
 
-            return FileVisitResult.CONTINUE;
-        }
+            var file = wait ? mQueue.take() : mQueue.poll();
+            if (file == END) {
+                mEnded = true;
 
-        @Override
-        public FileVisitResult visitFileFailed(Path file, IOException exception) {
-            mInputOutput.getErr().println(file.toString());
+                return null;
+            }
 
-            return FileVisitResult.CONTINUE;
+            return file;
         }
     }
 
+    private record Pending(File file, Future<DocumentGenerator.Analysis> analysis) {
+
+    }
 }
@@ -61,8 +61,10 @@ public class ExecutorManager {
         }
 
         var filter = new FileNameExtensionFilter("Keyhole Markup Language (*.kml)", "kml");
+        var kmzFilter = new FileNameExtensionFilter("Keyhole Markup Language, zipped (*.kmz)", "kmz");
         SimpleDialog.clearFilters();
         SimpleDialog.addFilter(filter);
+        SimpleDialog.addFilter(kmzFilter);
         SimpleDialog.setFilter(filter);
         SimpleDialog.setParent(Almond.getFrame());
         SimpleDialog.setTitle(String.format("%s %s", Dict.SAVE.toString(), task.getName()));
@@ -73,6 +75,9 @@ public class ExecutorManager {
         } else {
             SimpleDialog.setPath(destination.getParentFile());
             SimpleDialog.setSelectedFile(destination);
+            if (kmzFilter.accept(destination)) {
+                SimpleDialog.setFilter(kmzFilter);
+            }
         }
 
         if (SimpleDialog.saveFile()) {
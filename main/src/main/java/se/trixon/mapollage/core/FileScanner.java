@@ -0,0 +1,436 @@
+/*
+ * Copyright 2026 Patrik Karlström <patrik@trixon.se>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.mapollage.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import org.apache.commons.io.IOCase;
+import org.openide.windows.InputOutput;
+
+/**
+ * Work-stealing directory scanner that lists the subtrees of the source
+ * directory in parallel.
+ * <p>
+ * A file listener gets the files in the order of the sorted file list,
+ * whatever order the directories are listed in. A file is handed out as soon
+ * as the directories it is sorted after are listed.
+ *
+ * @author Patrik Karlström <patrik@trixon.se>
+ */
+public class FileScanner {
+
+    private final Properties mDefaultDescProperties = new Properties();
+    private final Map<String, Properties> mDirToDesc;
+    private final ExcludeMatcher mDirExcludeMatcher;
+    private final String mExternalFileValue;
+    private Consumer<File> mFileListener;
+    private final ExcludeMatcher mFileExcludeMatcher;
+    private final Pattern mFileNamePattern;
+    private final ConcurrentLinkedQueue<File> mFiles = new ConcurrentLinkedQueue<>();
+    private final boolean mFollowLinks;
+    private final InputOutput mInputOutput;
+    private DirNode mNextNode;
+    private final boolean mRecursive;
+    private final Object mReleaseLock = new Object();
+    private final ArrayDeque<Iterator<Object>> mReleaseStack = new ArrayDeque<>();
+    private final AtomicBoolean mRunning;
+    private ScanIndex mScanIndex;
+    private final TaskSource mTaskSource;
+    private final boolean mUseExternalDescription;
+
+    public FileScanner(Task task, InputOutput inputOutput, Map<String, Properties> dirToDesc, AtomicBoolean running) {
+        mTaskSource = task.getSource();
+        mInputOutput = inputOutput;
+        mDirToDesc = dirToDesc;
+        mRunning = running;
+
+        mFileNamePattern = mTaskSource.getFileNamePattern();
+        //Directories are excluded using the case sensitivity of the system, files always case sensitive
+        mFileExcludeMatcher = ExcludeMatcher.compile(mTaskSource.getExcludePattern(), true);
+        if (IOCase.SYSTEM.isCaseSensitive()) {
+            mDirExcludeMatcher = mFileExcludeMatcher;
+        } else {
+            mDirExcludeMatcher = ExcludeMatcher.compile(mTaskSource.getExcludePattern(), false);
+        }
+        mFollowLinks = mTaskSource.isFollowLinks();
+        mRecursive = mTaskSource.isRecursive();
+
+        var mode = task.getDescription().getMode();
+        mUseExternalDescription = mode == TaskDescription.DescriptionMode.EXTERNAL;
+        mExternalFileValue = task.getDescription().getExternalFileValue();
+
+        if (mUseExternalDescription) {
+            loadDescription(new File(mTaskSource.getDir(), mExternalFileValue), mDefaultDescProperties);
+        }
+    }
+
+    /**
+     * Scans the source directory and returns the matching files, sorted.
+     *
+     * @return the sorted file list, empty if nothing matched
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public List<File> scan() throws InterruptedException {
+        var sourceDir = mTaskSource.getDir();
+        var rootNode = new DirNode("");
+        mNextNode = rootNode;
+
+        if (sourceDir.isDirectory()) {
+            var pool = new ForkJoinPool(getParallelism());
+            try {
+                pool.submit(new DirTask(sourceDir.toPath(), null, rootNode)).get();
+            } catch (ExecutionException ex) {
+                mInputOutput.getErr().println(ex.getCause().getMessage());
+            } catch (InterruptedException ex) {
+                mRunning.set(false);
+                throw ex;
+            } finally {
+                pool.shutdownNow();
+            }
+        } else {
+            if (sourceDir.isFile() && mFileNamePattern.matcher(sourceDir.getName()).matches()) {
+                accept(sourceDir, rootNode);
+            }
+            release(rootNode);
+        }
+
+        var files = new ArrayList<>(mFiles);
+        Collections.sort(files);
+
+        return files;
+    }
+
+    /**
+     * Sets a listener that is notified, from the scanning threads, of every
+     * matching file as soon as its directory, and the directories before it,
+     * are listed.
+     *
+     * @param fileListener the listener, may block to throttle the scan
+     */
+    public void setFileListener(Consumer<File> fileListener) {
+        mFileListener = fileListener;
+    }
+
+    /**
+     * Sets the index used to skip the listing of unchanged directories.
+     *
+     * @param scanIndex the index, or null to list every directory
+     */
+    public void setScanIndex(ScanIndex scanIndex) {
+        mScanIndex = scanIndex;
+    }
+
+    private void accept(File file, DirNode node) {
+        mFiles.add(file);
+        if (mFileListener != null) {
+            node.mItems.add(file);
+        }
+    }
+
+    private int getParallelism() {
+        //Directory listing is mostly waiting on the file system, especially on network shares
+        return Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    private String getSortKey(Object item) {
+        //All paths below a directory sort together, as if named "name/"
+        if (item instanceof DirNode dirNode) {
+            return dirNode.mName + File.separator;
+        } else {
+            return ((File) item).getName();
+        }
+    }
+
+    private void loadDescription(File file, Properties p) {
+        if (file.isFile()) {
+            try (var reader = new InputStreamReader(new FileInputStream(file), Charset.defaultCharset())) {
+                p.load(reader);
+            } catch (IOException ex) {
+                // nvm
+            }
+        }
+    }
+
+    /**
+     * Marks the directory as listed and hands the files that are next in order
+     * to the listener, up to the first directory not yet listed.
+     */
+    private void release(DirNode node) {
+        if (mFileListener == null) {
+            return;
+        }
+
+        synchronized (mReleaseLock) {
+            node.mListed = true;
+
+            while (true) {
+                if (mNextNode != null) {
+                    if (!mNextNode.mListed) {
+                        return;
+                    }
+                    mReleaseStack.push(mNextNode.mItems.iterator());
+                    mNextNode = null;
+                }
+
+                while (!mReleaseStack.isEmpty() && !mReleaseStack.peek().hasNext()) {
+                    mReleaseStack.pop();
+                }
+                if (mReleaseStack.isEmpty()) {
+                    return;
+                }
+
+                var item = mReleaseStack.peek().next();
+                if (item instanceof DirNode dirNode) {
+                    mNextNode = dirNode;
+                } else {
+                    mFileListener.accept((File) item);
+                }
+            }
+        }
+    }
+
+    /**
+     * The ancestor chain of a directory, used for cycle detection when
+     * following links.
+     */
+    private record Ancestor(Object key, Ancestor parent) {
+
+        boolean contains(Object key) {
+            for (var a = this; a != null; a = a.parent) {
+                if (a.key.equals(key)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * A directory in release order, its files and subdirectories sorted
+     * together.
+     */
+    private static class DirNode {
+
+        private final List<Object> mItems = new ArrayList<>();
+        private boolean mListed;
+        private final String mName;
+
+        public DirNode(String name) {
+            mName = name;
+        }
+    }
+
+    private class DirTask extends RecursiveAction {
+
+        private final Path mDir;
+        private final DirNode mNode;
+        private final Ancestor mParent;
+
+        public DirTask(Path dir, Ancestor parent, DirNode node) {
+            mDir = dir;
+            mParent = parent;
+            mNode = node;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirTask> subTasks = List.of();
+            try {
+                subTasks = listDir();
+            } finally {
+                //Released before the subdirectories are listed
+                release(mNode);
+            }
+
+            invokeAll(subTasks);
+        }
+
+        private Object getKey(BasicFileAttributes attrs) {
+            if (attrs.fileKey() != null) {
+                return attrs.fileKey();
+            }
+
+            try {
+                return mDir.toRealPath();
+            } catch (IOException ex) {
+                return mDir.toAbsolutePath();
+            }
+        }
+
+        private ScanIndex.DirEntry list(long lastModified) throws IOException {
+            var files = new ArrayList<String>();
+            var dirs = new ArrayList<String>();
+            var links = new ArrayList<String>();
+
+            try (var stream = Files.newDirectoryStream(mDir)) {
+                for (var path : stream) {
+                    if (!mRunning.get()) {
+                        return null;
+                    }
+
+                    var name = path.getFileName().toString();
+                    try {
+                        var attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        if (attrs.isSymbolicLink()) {
+                            attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                            if (attrs.isDirectory()) {
+                                links.add(name);
+                            } else if (attrs.isRegularFile()) {
+                                files.add(name);
+                            }
+                        } else if (attrs.isDirectory()) {
+                            dirs.add(name);
+                        } else if (attrs.isRegularFile()) {
+                            files.add(name);
+                        }
+                    } catch (IOException ex) {
+                        //nvm, broken link
+                    }
+                }
+            }
+
+            return new ScanIndex.DirEntry(lastModified,
+                    files.toArray(String[]::new),
+                    dirs.toArray(String[]::new),
+                    links.toArray(String[]::new)
+            );
+        }
+
+        private List<DirTask> listDir() {
+            var dirPath = mDir.toAbsolutePath().toString();
+            if (!mRunning.get() || mDirExcludeMatcher.matches(dirPath)) {
+                return List.of();
+            }
+
+            BasicFileAttributes dirAttrs;
+            try {
+                dirAttrs = Files.readAttributes(mDir, BasicFileAttributes.class);
+            } catch (IOException ex) {
+                mInputOutput.getErr().println(mDir.toString());
+                return List.of();
+            }
+
+            Ancestor ancestor = null;
+            if (mFollowLinks && mRecursive) {
+                var key = getKey(dirAttrs);
+                if (mParent != null && mParent.contains(key)) {
+                    mInputOutput.getErr().println(mDir.toString());
+                    return List.of();
+                }
+                ancestor = new Ancestor(key, mParent);
+            }
+
+            mInputOutput.getOut().println(mDir.toString());
+            long lastModified = dirAttrs.lastModifiedTime().toMillis();
+            var entry = mScanIndex == null ? null : mScanIndex.get(mDir, lastModified);
+
+            if (entry == null) {
+                try {
+                    entry = list(lastModified);
+                } catch (IOException ex) {
+                    mInputOutput.getErr().println(mDir.toString());
+                    return List.of();
+                }
+
+                if (entry == null) {
+                    return List.of();
+                } else if (mScanIndex != null) {
+                    mScanIndex.put(mDir, entry);
+                }
+            }
+
+            var dirFile = mDir.toFile();
+            if (mUseExternalDescription && !entry.isEmpty()) {
+                var p = new Properties(mDefaultDescProperties);
+                loadDescription(new File(dirFile, mExternalFileValue), p);
+                mDirToDesc.put(dirFile.getAbsolutePath(), p);
+            }
+
+            //The automaton state after the directory part is shared by all files in it
+            var dirState = mFileExcludeMatcher.advance(0, dirPath);
+            dirState = mFileExcludeMatcher.advance(dirState, File.separatorChar);
+            var fileNameMatcher = mFileNamePattern.matcher("");
+            StringBuilder filePath = null;
+
+            for (var fileName : entry.getFiles()) {
+                if (!fileNameMatcher.reset(fileName).matches()
+                        || mFileExcludeMatcher.advance(dirState, fileName) == ExcludeMatcher.MATCH) {
+                    continue;
+                }
+
+                if (mFileExcludeMatcher.hasPatterns()) {
+                    if (filePath == null) {
+                        filePath = new StringBuilder(dirPath).append(File.separatorChar);
+                    }
+                    filePath.setLength(dirPath.length() + 1);
+                    if (mFileExcludeMatcher.matchesPatterns(filePath.append(fileName))) {
+                        continue;
+                    }
+                }
+
+                accept(new File(dirFile, fileName), mNode);
+            }
+
+            var subTasks = new ArrayList<DirTask>();
+            if (mRecursive) {
+                for (var dirName : entry.getDirs()) {
+                    subTasks.add(new DirTask(mDir.resolve(dirName), ancestor, new DirNode(dirName)));
+                }
+
+                if (mFollowLinks) {
+                    for (var dirName : entry.getLinks()) {
+                        subTasks.add(new DirTask(mDir.resolve(dirName), ancestor, new DirNode(dirName)));
+                    }
+                }
+
+                subTasks.sort(Comparator.comparing(task -> task.mDir.toFile()));
+                if (mFileListener != null) {
+                    for (var subTask : subTasks) {
+                        mNode.mItems.add(subTask.mNode);
+                    }
+                }
+            }
+
+            //Same order as the File comparator, case insensitive on Windows
+            mNode.mItems.sort((o1, o2) -> IOCase.SYSTEM.checkCompareTo(getSortKey(o1), getSortKey(o2)));
+
+            return subTasks;
+        }
+    }
+}
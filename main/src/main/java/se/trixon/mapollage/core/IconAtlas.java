@@ -0,0 +1,188 @@
+/*
+ * Copyright 2026 Patrik Karlström <patrik@trixon.se>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.mapollage.core;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import javax.imageio.ImageIO;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Packs the placemark icons of each folder into a few large images.
+ * <p>
+ * Cells are handed out while the document is generated, before the icons are
+ * rendered. They are filled from the lower left corner, which is where the gx
+ * offsets are measured from, so the final size of an atlas does not affect
+ * them. The icons are rendered to a staging directory and composed into the
+ * atlases once all of them are done.
+ *
+ * @author Patrik Karlström <patrik@trixon.se>
+ */
+public class IconAtlas {
+
+    public static final int MAX_SIZE = 4096;
+
+    private final int mCellSize;
+    private final int mCellsPerSide;
+    private final File mDir;
+    private final IdentityHashMap<Object, Sheet> mOpenSheets = new IdentityHashMap<>();
+    private final List<Sheet> mSheets = new ArrayList<>();
+    private final File mStagingDir;
+
+    /**
+     * @param dir the thumbnail directory, where the atlases are written
+     * @param cellSize the size of the icons
+     * @throws IOException if the staging directory could not be created
+     */
+    public IconAtlas(File dir, int cellSize) throws IOException {
+        mDir = dir;
+        mCellSize = cellSize;
+        mCellsPerSide = Math.max(1, MAX_SIZE / cellSize);
+        mStagingDir = Files.createTempDirectory("mapollage-icons").toFile();
+    }
+
+    /**
+     * Hands out the next cell of the folder.
+     *
+     * @param folder the folder of the placemark
+     * @param contentId the content id of the photo
+     * @param dimension the size of the rendered icon
+     * @return the cell
+     */
+    public Cell add(Object folder, String contentId, Dimension dimension) {
+        var sheet = mOpenSheets.get(folder);
+        if (sheet == null || sheet.mCells.size() == mCellsPerSide * mCellsPerSide) {
+            sheet = new Sheet(new File(mDir, "atlas-%d.jpg".formatted(mSheets.size())));
+            mOpenSheets.put(folder, sheet);
+            mSheets.add(sheet);
+        }
+
+        int index = sheet.mCells.size();
+        var cell = new Cell(getStagedFile(contentId),
+                sheet.mFile,
+                (index % mCellsPerSide) * mCellSize,
+                (index / mCellsPerSide) * mCellSize,
+                Math.min(dimension.width, mCellSize),
+                Math.min(dimension.height, mCellSize)
+        );
+        sheet.mCells.add(cell);
+
+        return cell;
+    }
+
+    /**
+     * Writes the atlases and removes the staged icons. Icons that were not
+     * rendered leave their cells empty.
+     *
+     * @param borderColor the color of the empty cells as RRGGBB
+     * @return the number of atlases written
+     * @throws IOException
+     */
+    public int compose(String borderColor) throws IOException {
+        var canvas = ThumbnailCanvas.get();
+        var backgroundColor = Color.decode("#" + borderColor);
+
+        try {
+            //Atlases of earlier runs may be numbered differently
+            var oldFiles = mDir.listFiles((dir, name) -> name.startsWith("atlas-") && name.endsWith(".jpg"));
+            for (var file : oldFiles == null ? new File[0] : oldFiles) {
+                Files.deleteIfExists(file.toPath());
+            }
+
+            for (var sheet : mSheets) {
+                int numOfCells = sheet.mCells.size();
+                int width = Math.min(numOfCells, mCellsPerSide) * mCellSize;
+                int height = ((numOfCells - 1) / mCellsPerSide + 1) * mCellSize;
+
+                var image = canvas.getImage(width, height);
+                var g2 = image.createGraphics();
+                g2.setColor(backgroundColor);
+                g2.fillRect(0, 0, width, height);
+
+                for (var cell : sheet.mCells) {
+                    var icon = cell.stagedFile().isFile() ? ImageIO.read(cell.stagedFile()) : null;
+                    if (icon != null) {
+                        g2.drawImage(icon, cell.x(), height - cell.y() - cell.height(), cell.width(), cell.height(), null);
+                    }
+                }
+                g2.dispose();
+
+                canvas.write(image, sheet.mFile);
+            }
+        } finally {
+            dispose();
+        }
+
+        return mSheets.size();
+    }
+
+    public void dispose() {
+        FileUtils.deleteQuietly(mStagingDir);
+    }
+
+    /**
+     * @return the atlas files, written by {@link #compose(java.lang.String)}
+     */
+    public List<File> getFiles() {
+        return mSheets.stream().map(sheet -> sheet.mFile).toList();
+    }
+
+    /**
+     * @param contentId the content id of the photo
+     * @return the file the icon of the photo is rendered to
+     */
+    public File getStagedFile(String contentId) {
+        return new File(mStagingDir, contentId + "_icon.jpg");
+    }
+
+    /**
+     * An icon in an atlas, its position measured from the lower left corner.
+     */
+    public record Cell(File stagedFile, File atlasFile, int x, int y, int width, int height) {
+
+        /**
+         * @return the area of the icon, for gx:x, gx:y, gx:w and gx:h
+         */
+        public Rectangle getArea() {
+            return new Rectangle(x, y, width, height);
+        }
+
+        /**
+         * @param dirName the name of the thumbnail directory
+         * @return the icon href
+         */
+        public String getHref(String dirName) {
+            return "%s/%s".formatted(dirName, atlasFile.getName());
+        }
+    }
+
+    private static class Sheet {
+
+        private final List<Cell> mCells = new ArrayList<>();
+        private final File mFile;
+
+        public Sheet(File file) {
+            mFile = file;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2026 Patrik Karlström <patrik@trixon.se>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.mapollage.core;
+
+import com.drew.lang.ByteArrayReader;
+import com.drew.metadata.Metadata;
+import com.drew.metadata.exif.ExifReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the EXIF segment and the frame size of a JPEG file without reading
+ * the rest of it.
+ * <p>
+ * Only the marker headers are walked, XMP, ICC, IPTC and the image data are
+ * skipped. Files that are not plain JPEGs are left to the full metadata
+ * reader.
+ * <p>
+ * The content id is a 64 bit hash of the first block read, the same for all
+ * file types, together with the size and modification time of the file.
+ *
+ * @author Patrik Karlström <patrik@trixon.se>
+ */
+public class JpegHeaderReader {
+
+    private static final int BUFFER_SIZE = 128 * 1024;
+    private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+    private static final byte[] EXIF_PREAMBLE = {'E', 'x', 'i', 'f', 0, 0};
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_EXIF = 0xE1;
+    private static final int MARKER_SOS = 0xDA;
+
+    private final ByteBuffer mBuffer;
+    private long mBufferPosition;
+    private final FileChannel mChannel;
+
+    /**
+     * Reads the header of the file.
+     *
+     * @param file the file
+     * @param size the size of the file
+     * @param lastModified the modification time of the file
+     * @return the header, with null metadata if the file is not a JPEG this
+     * reader understands
+     * @throws IOException
+     */
+    public static Header read(File file, long size, long lastModified) throws IOException {
+        try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new JpegHeaderReader(channel, BUFFER.get()).read(size, lastModified);
+        }
+    }
+
+    private static long hash(ByteBuffer buffer, int length, long size, long lastModified) {
+        long h = PRIME_1 ^ size;
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            h = Long.rotateLeft(h ^ buffer.getLong(i) * PRIME_2, 31) * PRIME_1;
+        }
+        for (; i < length; i++) {
+            h = Long.rotateLeft(h ^ (buffer.get(i) & 0xFF) * PRIME_2, 31) * PRIME_1;
+        }
+
+        //MurmurHash3 finalizer
+        h ^= lastModified;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+
+        return h;
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        //SOF0-SOF15 except DHT, JPG and DAC
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    private JpegHeaderReader(FileChannel channel, ByteBuffer buffer) {
+        mChannel = channel;
+        mBuffer = buffer;
+        mBuffer.clear().limit(0);
+    }
+
+    /**
+     * Makes sure the range is in the buffer, reading from the file if needed.
+     */
+    private boolean ensure(long position, int length) throws IOException {
+        if (position >= mBufferPosition && position + length <= mBufferPosition + mBuffer.limit()) {
+            return true;
+        } else if (length > mBuffer.capacity()) {
+            return false;
+        }
+
+        mBuffer.clear();
+        mBufferPosition = position;
+        while (mBuffer.hasRemaining()) {
+            if (mChannel.read(mBuffer, position + mBuffer.position()) < 0) {
+                break;
+            }
+        }
+        mBuffer.flip();
+
+        return mBuffer.limit() >= length;
+    }
+
+    private int getUnsignedByte(long position) {
+        return mBuffer.get((int) (position - mBufferPosition)) & 0xFF;
+    }
+
+    private int getUnsignedShort(long position) {
+        return mBuffer.getShort((int) (position - mBufferPosition)) & 0xFFFF;
+    }
+
+    private boolean hasExifPreamble(long position) {
+        for (int i = 0; i < EXIF_PREAMBLE.length; i++) {
+            if (mBuffer.get((int) (position - mBufferPosition) + i) != EXIF_PREAMBLE[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private Header read(long size, long lastModified) throws IOException {
+        boolean filled = ensure(0, 2);
+        var contentId = String.format("%016x", hash(mBuffer, mBuffer.limit(), size, lastModified));
+
+        if (!filled || getUnsignedShort(0) != 0xFFD8) {
+            return new Header(null, 0, 0, 0, contentId);
+        }
+
+        byte[] exif = null;
+        long exifOffset = 0;
+        int width = 0;
+        int height = 0;
+        long position = 2;
+
+        while (ensure(position, 2)) {
+            if (getUnsignedByte(position) != 0xFF) {
+                return new Header(null, 0, 0, 0, contentId);
+            }
+
+            int marker = getUnsignedByte(position + 1);
+            if (marker == 0xFF) {
+                //Fill byte
+                position++;
+                continue;
+            } else if (marker == MARKER_SOS || marker == MARKER_EOI) {
+                break;
+            } else if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                //Stand-alone markers without length
+                position += 2;
+                continue;
+            }
+
+            if (!ensure(position, 4)) {
+                return new Header(null, 0, 0, 0, contentId);
+            }
+
+            int length = getUnsignedShort(position + 2);
+            if (length < 2) {
+                return new Header(null, 0, 0, 0, contentId);
+            }
+
+            long payload = position + 4;
+            int payloadLength = length - 2;
+
+            if (marker == MARKER_EXIF && exif == null && payloadLength > EXIF_PREAMBLE.length) {
+                if (!ensure(payload, payloadLength)) {
+                    return new Header(null, 0, 0, 0, contentId);
+                }
+
+                if (hasExifPreamble(payload)) {
+                    exif = new byte[payloadLength - EXIF_PREAMBLE.length];
+                    exifOffset = payload + EXIF_PREAMBLE.length;
+                    mBuffer.get((int) (payload - mBufferPosition) + EXIF_PREAMBLE.length, exif);
+                }
+            } else if (isStartOfFrame(marker)) {
+                if (!ensure(payload, 5)) {
+                    return new Header(null, 0, 0, 0, contentId);
+                }
+
+                height = getUnsignedShort(payload + 1);
+                width = getUnsignedShort(payload + 3);
+                //The EXIF segment precedes the frame
+                break;
+            }
+
+            position = payload + payloadLength;
+        }
+
+        var metadata = new Metadata();
+        if (exif != null) {
+            new ExifReader().extract(new ByteArrayReader(exif), metadata);
+        }
+
+        return new Header(metadata, exifOffset, width, height, contentId);
+    }
+
+    /**
+     * The metadata of the EXIF segment, null if not read, the file position of
+     * its TIFF header, the frame size, 0 if unknown, and the content id.
+     */
+    public record Header(Metadata metadata, long exifOffset, int width, int height, String contentId) {
+
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2026 Patrik Karlström <patrik@trixon.se>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.mapollage.core;
+
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A folder of the document whose placemarks are held in a spool.
+ * <p>
+ * The content is kept in the order it was added, subfolders mixed with runs
+ * of spooled placemarks. Placemarks spooled one after the other share a run,
+ * so a folder filled in one go costs the same no matter its size. A max run
+ * length keeps the runs short enough to split the folder between files.
+ *
+ * @author Patrik Karlström <patrik@trixon.se>
+ */
+public class KmlFolder {
+
+    private final List<Object> mChildren = new ArrayList<>();
+    private double[] mCoordinates = new double[0];
+    private String mDescription;
+    private long mMaxRunLength = Long.MAX_VALUE;
+    private final String mName;
+    private int mNumOfCoordinates;
+    private final Boolean mOpen;
+
+    /**
+     * @param name the name
+     * @param open the open state, null to leave it out
+     */
+    public KmlFolder(String name, Boolean open) {
+        mName = name;
+        mOpen = open;
+    }
+
+    /**
+     * Records the position of a placemark, for the polygons and the regions
+     * of the folder files.
+     *
+     * @param lon the longitude
+     * @param lat the latitude
+     */
+    public void addCoordinate(double lon, double lat) {
+        if (mNumOfCoordinates * 2 == mCoordinates.length) {
+            mCoordinates = Arrays.copyOf(mCoordinates, Math.max(32, mCoordinates.length * 2));
+        }
+
+        mCoordinates[mNumOfCoordinates * 2] = lon;
+        mCoordinates[mNumOfCoordinates * 2 + 1] = lat;
+        mNumOfCoordinates++;
+    }
+
+    public void addFolder(KmlFolder folder) {
+        mChildren.add(folder);
+    }
+
+    public KmlFolder addFolder(String name, Boolean open) {
+        var folder = new KmlFolder(name, open);
+        folder.setMaxRunLength(mMaxRunLength);
+        addFolder(folder);
+
+        return folder;
+    }
+
+    /**
+     * Adds a spooled placemark.
+     *
+     * @param position the position in the spool
+     * @param count the length in the spool
+     */
+    public void addPlacemark(long position, long count) {
+        if (!mChildren.isEmpty() && mChildren.get(mChildren.size() - 1) instanceof Run run && run.end() == position && run.count() + count <= mMaxRunLength) {
+            mChildren.set(mChildren.size() - 1, new Run(run.position(), run.count() + count));
+        } else {
+            mChildren.add(new Run(position, count));
+        }
+    }
+
+    /**
+     * @param includeFolders true to include the subfolders, recursively
+     * @return the bounding box of the recorded coordinates, x and y being the
+     * west and south edges, null if there are none
+     */
+    public Rectangle2D.Double getBounds(boolean includeFolders) {
+        Rectangle2D.Double bounds = null;
+        for (int i = 0; i < mNumOfCoordinates; i++) {
+            if (bounds == null) {
+                bounds = new Rectangle2D.Double(mCoordinates[i * 2], mCoordinates[i * 2 + 1], 0, 0);
+            } else {
+                bounds.add(mCoordinates[i * 2], mCoordinates[i * 2 + 1]);
+            }
+        }
+
+        if (includeFolders) {
+            for (var folder : getFolders()) {
+                var folderBounds = folder.getBounds(true);
+                if (bounds == null) {
+                    bounds = folderBounds;
+                } else if (folderBounds != null) {
+                    bounds.add(folderBounds);
+                }
+            }
+        }
+
+        return bounds;
+    }
+
+    /**
+     * @return the recorded coordinates
+     */
+    public List<Point2D.Double> getCoordinates() {
+        var coordinates = new ArrayList<Point2D.Double>(mNumOfCoordinates);
+        for (int i = 0; i < mNumOfCoordinates; i++) {
+            coordinates.add(new Point2D.Double(mCoordinates[i * 2], mCoordinates[i * 2 + 1]));
+        }
+
+        return coordinates;
+    }
+
+    /**
+     * @return the direct subfolders
+     */
+    public List<KmlFolder> getFolders() {
+        var folders = new ArrayList<KmlFolder>();
+        for (var child : mChildren) {
+            if (child instanceof KmlFolder folder) {
+                folders.add(folder);
+            }
+        }
+
+        return folders;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public boolean isEmpty() {
+        return mChildren.isEmpty();
+    }
+
+    public boolean removeFolder(KmlFolder folder) {
+        return mChildren.remove(folder);
+    }
+
+    public void setDescription(String description) {
+        mDescription = description;
+    }
+
+    /**
+     * @param maxRunLength the max length of a run of placemarks, inherited by
+     * the subfolders added after this
+     */
+    public void setMaxRunLength(long maxRunLength) {
+        mMaxRunLength = maxRunLength;
+    }
+
+    /**
+     * Writes the folder, its placemarks copied from the spool.
+     *
+     * @param writer the document
+     * @param spool the spool
+     * @throws IOException
+     */
+    public void write(KmlWriter writer, KmlWriter spool) throws IOException {
+        writer.startFolder(mName, mOpen, mDescription);
+        for (var child : mChildren) {
+            if (child instanceof KmlFolder folder) {
+                folder.write(writer, spool);
+            } else if (child instanceof Run run) {
+                writer.copy(spool, run.position(), run.count());
+            }
+        }
+        writer.endFolder();
+    }
+
+    /**
+     * Writes the content of the folder to files of its own, as documents
+     * named after the folder. A new file is started when the next run would
+     * take the file past maxLength, and it opens the subfolders again.
+     *
+     * @param dir the directory
+     * @param fileBaseName the file name, without extension
+     * @param maxLength the max length of a file
+     * @param spool the spool
+     * @param includeFolders false to only write the placemarks of this folder
+     * @return the files written, none if there was nothing to write
+     * @throws IOException
+     */
+    public List<File> writeFiles(File dir, String fileBaseName, long maxLength, KmlWriter spool, boolean includeFolders) throws IOException {
+        var splitter = new FileSplitter(dir, fileBaseName, mName, maxLength, spool);
+        try {
+            splitter.write(this, includeFolders);
+        } finally {
+            splitter.close();
+        }
+
+        return splitter.mFiles;
+    }
+
+    private static class FileSplitter {
+
+        private final File mDir;
+        private final String mDocumentName;
+        private final String mFileBaseName;
+        private final List<File> mFiles = new ArrayList<>();
+        private final long mMaxLength;
+        private final List<KmlFolder> mOpenFolders = new ArrayList<>();
+        private final List<KmlFolder> mPath = new ArrayList<>();
+        private final KmlWriter mSpool;
+        private KmlWriter mWriter;
+
+        FileSplitter(File dir, String fileBaseName, String documentName, long maxLength, KmlWriter spool) {
+            mDir = dir;
+            mFileBaseName = fileBaseName;
+            mDocumentName = documentName;
+            mMaxLength = maxLength;
+            mSpool = spool;
+        }
+
+        void close() throws IOException {
+            if (mWriter != null) {
+                for (int i = 0; i < mOpenFolders.size(); i++) {
+                    mWriter.endFolder();
+                }
+                mOpenFolders.clear();
+                mWriter.endDocument();
+                mWriter.close();
+                mWriter = null;
+            }
+        }
+
+        void write(KmlFolder parent, boolean includeFolders) throws IOException {
+            for (var child : parent.mChildren) {
+                if (child instanceof KmlFolder folder && includeFolders) {
+                    mPath.add(folder);
+                    write(folder, true);
+                    mPath.remove(mPath.size() - 1);
+                } else if (child instanceof Run run) {
+                    write(run);
+                }
+            }
+        }
+
+        private void write(Run run) throws IOException {
+            //1 KiB is left for the end tags, and a file gets at least one run
+            if (mWriter != null && mWriter.getPosition() + run.count() + 1024 > mMaxLength && mWriter.getPosition() > mMaxLength / 64) {
+                close();
+            }
+
+            if (mWriter == null) {
+                int part = mFiles.size() + 1;
+                var file = new File(mDir, (part == 1 ? mFileBaseName : "%s.%d".formatted(mFileBaseName, part)) + ".kml");
+                mFiles.add(file);
+                mWriter = new KmlWriter(file);
+                mWriter.startDocument(part == 1 ? mDocumentName : "%s (%d)".formatted(mDocumentName, part));
+            }
+
+            //Keep the folders shared with the path of the run open
+            int common = 0;
+            while (common < mOpenFolders.size() && common < mPath.size() && mOpenFolders.get(common) == mPath.get(common)) {
+                common++;
+            }
+            while (mOpenFolders.size() > common) {
+                mWriter.endFolder();
+                mOpenFolders.remove(mOpenFolders.size() - 1);
+            }
+            for (int i = common; i < mPath.size(); i++) {
+                var folder = mPath.get(i);
+                mWriter.startFolder(folder.mName, folder.mOpen, folder.mDescription);
+                mOpenFolders.add(folder);
+            }
+
+            mWriter.copy(mSpool, run.position(), run.count());
+        }
+    }
+
+    private record Run(long position, long count) {
+
+        long end() {
+            return position + count;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2026 Patrik Karlström <patrik@trixon.se>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.mapollage.core;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Interns the placemark styles.
+ * <p>
+ * Each distinct appearance is written once, as a normal and a highlight style
+ * joined by a StyleMap, and placemarks that look the same share its id. Only
+ * photo symbols differ between placemarks, all other placemarks share one
+ * StyleMap. Clusters get StyleMaps of their own, with the icon of a photo but
+ * a balloon showing only their name.
+ *
+ * @author Patrik Karlström <patrik@trixon.se>
+ */
+public class KmlStyles {
+
+    private static final String CLUSTER_BALLOON_TEXT = "<h3>$[name]</h3>";
+
+    private final Map<String, Appearance> mAppearances = new HashMap<>();
+    private final String mBalloonText;
+    private final Map<Appearance, String> mClusterStyleMapIds = new HashMap<>();
+    private final Map<Appearance, String> mStyleMapIds = new HashMap<>();
+    private final KmlWriter mWriter;
+
+    /**
+     * @param writer the writer the styles are written to
+     * @param balloonText the text of the balloon style
+     */
+    public KmlStyles(KmlWriter writer, String balloonText) {
+        mWriter = writer;
+        mBalloonText = balloonText;
+    }
+
+    /**
+     * Writes the cluster styles with the appearance of a photo style, unless
+     * already written.
+     *
+     * @param styleMapId the StyleMap of the photo
+     * @return the id of the cluster StyleMap
+     * @throws IOException
+     */
+    public String getClusterStyleMapId(String styleMapId) throws IOException {
+        var appearance = mAppearances.get(styleMapId);
+        var clusterStyleMapId = mClusterStyleMapIds.get(appearance);
+
+        if (clusterStyleMapId == null) {
+            int index = mClusterStyleMapIds.size();
+            clusterStyleMapId = "cm_%d".formatted(index);
+            writeStyles("c_%d".formatted(index), clusterStyleMapId, appearance, CLUSTER_BALLOON_TEXT);
+            mClusterStyleMapIds.put(appearance, clusterStyleMapId);
+        }
+
+        return clusterStyleMapId;
+    }
+
+    /**
+     * Writes the styles of the appearance, unless already written.
+     *
+     * @param normalScale the icon scale
+     * @param highlightScale the icon scale when highlighted
+     * @param href the icon href, null for the default icon
+     * @param area the area of the icon in the image, null for the whole image
+     * @return the id of the StyleMap
+     * @throws IOException
+     */
+    public String getStyleMapId(double normalScale, double highlightScale, String href, Rectangle area) throws IOException {
+        var appearance = new Appearance(normalScale, highlightScale, href, area);
+        var styleMapId = mStyleMapIds.get(appearance);
+
+        if (styleMapId == null) {
+            int index = mStyleMapIds.size();
+            styleMapId = "m_%d".formatted(index);
+            writeStyles("s_%d".formatted(index), styleMapId, appearance, mBalloonText);
+            mStyleMapIds.put(appearance, styleMapId);
+            mAppearances.put(styleMapId, appearance);
+        }
+
+        return styleMapId;
+    }
+
+    /**
+     * @return the number of distinct appearances
+     */
+    public int size() {
+        return mStyleMapIds.size();
+    }
+
+    private void writeStyles(String styleId, String styleMapId, Appearance appearance, String balloonText) throws IOException {
+        var styleHighlightId = styleId + "_hl";
+
+        mWriter.startStyle(styleId);
+        mWriter.writeIconStyle(appearance.normalScale(), appearance.href(), appearance.area());
+        mWriter.endStyle();
+
+        mWriter.startStyle(styleHighlightId);
+        mWriter.writeIconStyle(appearance.highlightScale(), appearance.href(), appearance.area());
+        //aabbggrr
+        mWriter.writeBalloonStyle("BalloonStyleId", "ff272420", "ffeeeeee", balloonText);
+        mWriter.endStyle();
+
+        mWriter.writeStyleMap(styleMapId, "#" + styleId, "#" + styleHighlightId);
+    }
+
+    private record Appearance(double normalScale, double highlightScale, String href, Rectangle area) {
+
+    }
+}
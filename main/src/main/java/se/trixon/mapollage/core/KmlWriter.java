@@ -0,0 +1,597 @@
+/*
+ * Copyright 2026 Patrik Karlström <patrik@trixon.se>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.mapollage.core;
+
+import java.awt.Rectangle;
+import java.awt.geom.Point2D;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Writes KML elements straight to a file channel.
+ * <p>
+ * A writer is either the document itself or a spool of fragments, placemarks
+ * and styles written in the order they are produced, that are copied into the
+ * document by {@link #copy(KmlWriter, long, long)} once it is assembled.
+ * Nothing but the write buffers are held in memory.
+ *
+ * @author Patrik Karlström <patrik@trixon.se>
+ */
+public class KmlWriter implements Closeable {
+
+    public static final String GX_NAMESPACE = "http://www.google.com/kml/ext/2.2";
+    public static final String KML_NAMESPACE = "http://www.opengis.net/kml/2.2";
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newFactory();
+
+    private final BufferedOutputStream mBufferedStream;
+    private final FileChannel mChannel;
+    private long mPosition;
+    private final XMLStreamWriter mWriter;
+
+    /**
+     * Creates a spool in the temp directory, removed when closed.
+     *
+     * @return the spool
+     * @throws IOException
+     */
+    public static KmlWriter createSpool() throws IOException {
+        var file = File.createTempFile("mapollage", ".kml");
+
+        return new KmlWriter(FileChannel.open(file.toPath(),
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE
+        ));
+    }
+
+    /**
+     * @param file the file to create or replace
+     * @throws IOException
+     */
+    public KmlWriter(File file) throws IOException {
+        this(FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE
+        ));
+    }
+
+    private KmlWriter(FileChannel channel) throws IOException {
+        mChannel = channel;
+        mBufferedStream = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+
+        //The XML writer flushes on every call to flush(), only count the bytes
+        var countingStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                mBufferedStream.write(b);
+                mPosition++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                mBufferedStream.write(b, off, len);
+                mPosition += len;
+            }
+        };
+
+        try {
+            mWriter = OUTPUT_FACTORY.createXMLStreamWriter(countingStream, "UTF-8");
+        } catch (XMLStreamException ex) {
+            channel.close();
+            throw new IOException(ex);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (mChannel) {
+            write(() -> mWriter.close());
+            mBufferedStream.flush();
+        }
+    }
+
+    /**
+     * Copies fragments of a spool to this writer.
+     *
+     * @param spool the spool
+     * @param position the position of the fragments in the spool
+     * @param count the length of the fragments
+     * @throws IOException
+     */
+    public void copy(KmlWriter spool, long position, long count) throws IOException {
+        write(() -> {
+            //Close any open start tag before the raw bytes
+            mWriter.writeCharacters("");
+            mWriter.flush();
+        });
+        mBufferedStream.flush();
+        spool.getPosition();
+        spool.mBufferedStream.flush();
+
+        long end = position + count;
+        while (position < end) {
+            position += spool.mChannel.transferTo(position, end - position, mChannel);
+        }
+        mPosition += count;
+    }
+
+    public void endDocument() throws IOException {
+        write(() -> {
+            mWriter.writeCharacters("\n");
+            mWriter.writeEndElement();
+            mWriter.writeCharacters("\n");
+            mWriter.writeEndElement();
+            mWriter.writeEndDocument();
+        });
+    }
+
+    public void endFolder() throws IOException {
+        endBlock();
+    }
+
+    public void endPlacemark() throws IOException {
+        endBlock();
+    }
+
+    public void endStyle() throws IOException {
+        endBlock();
+    }
+
+    /**
+     * @return the number of bytes written so far
+     * @throws IOException
+     */
+    public long getPosition() throws IOException {
+        write(() -> mWriter.flush());
+
+        return mPosition;
+    }
+
+    /**
+     * @param name the name, null to leave it out
+     * @throws IOException
+     */
+    public void startDocument(String name) throws IOException {
+        write(() -> {
+            mWriter.writeStartDocument("UTF-8", "1.0");
+            mWriter.writeCharacters("\n");
+            mWriter.writeStartElement("kml");
+            mWriter.writeDefaultNamespace(KML_NAMESPACE);
+            mWriter.writeNamespace("gx", GX_NAMESPACE);
+            mWriter.writeCharacters("\n");
+            mWriter.writeStartElement("Document");
+            if (name != null) {
+                writeText("name", name);
+            }
+            writeSimpleElement("open", "1");
+        });
+    }
+
+    /**
+     * @param name the name
+     * @param open the open state, null to leave it out
+     * @param description the description, null to leave it out
+     * @throws IOException
+     */
+    public void startFolder(String name, Boolean open, String description) throws IOException {
+        startBlock("Folder");
+        writeElement("name", name);
+        if (open != null) {
+            writeElement("open", open ? "1" : "0");
+        }
+        if (description != null) {
+            writeElement("description", description);
+        }
+    }
+
+    public void startPlacemark(String name) throws IOException {
+        startBlock("Placemark");
+        writeElement("name", name);
+    }
+
+    /**
+     * @param id the id, null for an inline style
+     * @throws IOException
+     */
+    public void startStyle(String id) throws IOException {
+        startBlock("Style");
+        if (id != null) {
+            write(() -> mWriter.writeAttribute("id", id));
+        }
+    }
+
+    /**
+     * @param id the id
+     * @param bgColor the background color as AABBGGRR
+     * @param textColor the text color as AABBGGRR
+     * @param text the text
+     * @throws IOException
+     */
+    public void writeBalloonStyle(String id, String bgColor, String textColor, String text) throws IOException {
+        write(() -> {
+            mWriter.writeStartElement("BalloonStyle");
+            mWriter.writeAttribute("id", id);
+            writeSimpleElement("bgColor", bgColor);
+            writeSimpleElement("textColor", textColor);
+            writeText("text", text);
+            mWriter.writeEndElement();
+        });
+    }
+
+    /**
+     * Writes a simple element, its text in a CDATA section if it contains
+     * markup.
+     *
+     * @param localName the element name
+     * @param text the text
+     * @throws IOException
+     */
+    public void writeElement(String localName, String text) throws IOException {
+        write(() -> writeText(localName, text));
+    }
+
+    /**
+     * @param scale the scale
+     * @param href the icon href, null for the default icon
+     * @param area the area of the icon in the image, measured from the lower
+     * left corner, null for the whole image
+     * @throws IOException
+     */
+    public void writeIconStyle(double scale, String href, Rectangle area) throws IOException {
+        write(() -> {
+            mWriter.writeStartElement("IconStyle");
+            writeSimpleElement("scale", String.valueOf(scale));
+            if (href != null) {
+                mWriter.writeStartElement("Icon");
+                writeSimpleElement("href", href);
+                if (area != null) {
+                    writeGxElement("x", area.x);
+                    writeGxElement("y", area.y);
+                    writeGxElement("w", area.width);
+                    writeGxElement("h", area.height);
+                }
+                mWriter.writeEndElement();
+            }
+            mWriter.writeEndElement();
+        });
+    }
+
+    /**
+     * @param points the points
+     * @throws IOException
+     */
+    public void writeLineString(List<Point2D.Double> points) throws IOException {
+        write(() -> {
+            mWriter.writeStartElement("LineString");
+            writeSimpleElement("extrude", "0");
+            writeSimpleElement("tessellate", "1");
+            writeSimpleElement("coordinates", getCoordinates(points));
+            mWriter.writeEndElement();
+        });
+    }
+
+    /**
+     * @param color the color as AABBGGRR
+     * @param width the width
+     * @throws IOException
+     */
+    public void writeLineStyle(String color, double width) throws IOException {
+        write(() -> {
+            mWriter.writeStartElement("LineStyle");
+            writeSimpleElement("color", color);
+            writeSimpleElement("width", String.valueOf(width));
+            mWriter.writeEndElement();
+        });
+    }
+
+    /**
+     * Writes a NetworkLink that is loaded at once.
+     *
+     * @param name the name
+     * @param href the href of the linked file
+     * @throws IOException
+     */
+    public void writeNetworkLink(String name, String href) throws IOException {
+        startBlock("NetworkLink");
+        write(() -> {
+            writeText("name", name);
+            mWriter.writeStartElement("Link");
+            writeText("href", href);
+            mWriter.writeEndElement();
+        });
+        endBlock();
+    }
+
+    /**
+     * Writes a NetworkLink that is loaded when its region is active.
+     *
+     * @param name the name
+     * @param href the href of the linked file
+     * @param north the north edge of the region
+     * @param south the south edge of the region
+     * @param east the east edge of the region
+     * @param west the west edge of the region
+     * @param minLodPixels the size the region must have on screen
+     * @throws IOException
+     */
+    public void writeNetworkLink(String name, String href, double north, double south, double east, double west, int minLodPixels) throws IOException {
+        startBlock("NetworkLink");
+        write(() -> {
+            writeText("name", name);
+            writeRegionElement(north, south, east, west, minLodPixels, -1);
+            mWriter.writeStartElement("Link");
+            writeText("href", href);
+            writeSimpleElement("viewRefreshMode", "onRegion");
+            mWriter.writeEndElement();
+        });
+        endBlock();
+    }
+
+    /**
+     * @param lon the longitude
+     * @param lat the latitude
+     * @throws IOException
+     */
+    public void writePoint(double lon, double lat) throws IOException {
+        write(() -> {
+            mWriter.writeStartElement("Point");
+            writeSimpleElement("coordinates", lon + "," + lat);
+            mWriter.writeEndElement();
+        });
+    }
+
+    /**
+     * @param points the outer boundary
+     * @throws IOException
+     */
+    public void writePolygon(List<Point2D.Double> points) throws IOException {
+        write(() -> {
+            mWriter.writeStartElement("Polygon");
+            mWriter.writeStartElement("outerBoundaryIs");
+            mWriter.writeStartElement("LinearRing");
+            writeSimpleElement("coordinates", getCoordinates(points));
+            mWriter.writeEndElement();
+            mWriter.writeEndElement();
+            mWriter.writeEndElement();
+        });
+    }
+
+    /**
+     * @param color the color as AABBGGRR
+     * @param randomColorMode true for a random color mode
+     * @throws IOException
+     */
+    public void writePolyStyle(String color, boolean randomColorMode) throws IOException {
+        write(() -> {
+            mWriter.writeStartElement("PolyStyle");
+            writeSimpleElement("color", color);
+            if (randomColorMode) {
+                writeSimpleElement("colorMode", "random");
+            }
+            mWriter.writeEndElement();
+        });
+    }
+
+    /**
+     * Writes a Region that is active while its size on screen is from
+     * minLodPixels up to maxLodPixels.
+     *
+     * @param north the north edge
+     * @param south the south edge
+     * @param east the east edge
+     * @param west the west edge
+     * @param minLodPixels the size the region must have on screen
+     * @param maxLodPixels the size the region must stay below on screen, -1
+     * for no upper limit
+     * @throws IOException
+     */
+    public void writeRegion(double north, double south, double east, double west, double minLodPixels, double maxLodPixels) throws IOException {
+        write(() -> {
+            mWriter.writeCharacters("\n");
+            writeRegionElement(north, south, east, west, minLodPixels, maxLodPixels);
+        });
+    }
+
+    /**
+     * Declares a schema of string fields.
+     *
+     * @param id the id, also used as name
+     * @param fieldNames the field names
+     * @throws IOException
+     */
+    public void writeSchema(String id, List<String> fieldNames) throws IOException {
+        startBlock("Schema");
+        write(() -> {
+            mWriter.writeAttribute("name", id);
+            mWriter.writeAttribute("id", id);
+            for (var fieldName : fieldNames) {
+                mWriter.writeEmptyElement("SimpleField");
+                mWriter.writeAttribute("type", "string");
+                mWriter.writeAttribute("name", fieldName);
+            }
+        });
+        endBlock();
+    }
+
+    /**
+     * @param schemaUrl the url of the schema
+     * @param fieldNames the field names
+     * @param values the values, in the order of the field names
+     * @throws IOException
+     */
+    public void writeSchemaData(String schemaUrl, List<String> fieldNames, String[] values) throws IOException {
+        write(() -> {
+            mWriter.writeStartElement("ExtendedData");
+            mWriter.writeStartElement("SchemaData");
+            mWriter.writeAttribute("schemaUrl", schemaUrl);
+            for (int i = 0; i < values.length; i++) {
+                mWriter.writeStartElement("SimpleData");
+                mWriter.writeAttribute("name", fieldNames.get(i));
+                writeCharacters(values[i]);
+                mWriter.writeEndElement();
+            }
+            mWriter.writeEndElement();
+            mWriter.writeEndElement();
+        });
+    }
+
+    /**
+     * Writes an empty Snippet, which hides the description in the places
+     * list.
+     *
+     * @throws IOException
+     */
+    public void writeSnippet() throws IOException {
+        write(() -> mWriter.writeEmptyElement("Snippet"));
+    }
+
+    /**
+     * @param id the id
+     * @param normalStyleUrl the url of the normal style
+     * @param highlightStyleUrl the url of the highlight style
+     * @throws IOException
+     */
+    public void writeStyleMap(String id, String normalStyleUrl, String highlightStyleUrl) throws IOException {
+        startBlock("StyleMap");
+        write(() -> {
+            mWriter.writeAttribute("id", id);
+            writePair("normal", normalStyleUrl);
+            writePair("highlight", highlightStyleUrl);
+        });
+        endBlock();
+    }
+
+    /**
+     * @param when the time as xsd:dateTime
+     * @throws IOException
+     */
+    public void writeTimeStamp(String when) throws IOException {
+        write(() -> {
+            mWriter.writeStartElement("TimeStamp");
+            writeSimpleElement("when", when);
+            mWriter.writeEndElement();
+        });
+    }
+
+    private void endBlock() throws IOException {
+        write(() -> mWriter.writeEndElement());
+    }
+
+    private String getCoordinates(List<Point2D.Double> points) {
+        var builder = new StringBuilder(points.size() * 40);
+        for (var point : points) {
+            if (!builder.isEmpty()) {
+                builder.append(' ');
+            }
+            builder.append(point.x).append(',').append(point.y);
+        }
+
+        return builder.toString();
+    }
+
+    private String getPixels(double pixels) {
+        return pixels == Math.rint(pixels) ? String.valueOf((long) pixels) : String.valueOf(pixels);
+    }
+
+    private void startBlock(String localName) throws IOException {
+        write(() -> {
+            mWriter.writeCharacters("\n");
+            mWriter.writeStartElement(localName);
+        });
+    }
+
+    private void write(XmlAction action) throws IOException {
+        try {
+            action.write();
+        } catch (XMLStreamException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private void writeCharacters(String text) throws XMLStreamException {
+        if (StringUtils.containsAny(text, '<', '>', '&')) {
+            var parts = StringUtils.splitByWholeSeparatorPreserveAllTokens(text, "]]>");
+            for (int i = 0; i < parts.length; i++) {
+                var part = parts[i];
+                if (i > 0) {
+                    mWriter.writeCData("]]");
+                    part = ">" + part;
+                }
+                mWriter.writeCData(part);
+            }
+        } else {
+            mWriter.writeCharacters(text);
+        }
+    }
+
+    private void writeGxElement(String localName, int value) throws XMLStreamException {
+        mWriter.writeStartElement("gx", localName, GX_NAMESPACE);
+        mWriter.writeCharacters(String.valueOf(value));
+        mWriter.writeEndElement();
+    }
+
+    private void writePair(String key, String styleUrl) throws XMLStreamException {
+        mWriter.writeStartElement("Pair");
+        writeSimpleElement("key", key);
+        writeSimpleElement("styleUrl", styleUrl);
+        mWriter.writeEndElement();
+    }
+
+    private void writeRegionElement(double north, double south, double east, double west, double minLodPixels, double maxLodPixels) throws XMLStreamException {
+        mWriter.writeStartElement("Region");
+        mWriter.writeStartElement("LatLonAltBox");
+        writeSimpleElement("north", String.valueOf(north));
+        writeSimpleElement("south", String.valueOf(south));
+        writeSimpleElement("east", String.valueOf(east));
+        writeSimpleElement("west", String.valueOf(west));
+        mWriter.writeEndElement();
+        mWriter.writeStartElement("Lod");
+        writeSimpleElement("minLodPixels", getPixels(minLodPixels));
+        writeSimpleElement("maxLodPixels", getPixels(maxLodPixels));
+        mWriter.writeEndElement();
+        mWriter.writeEndElement();
+    }
+
+    private void writeSimpleElement(String localName, String text) throws XMLStreamException {
+        mWriter.writeStartElement(localName);
+        mWriter.writeCharacters(text);
+        mWriter.writeEndElement();
+    }
+
+    private void writeText(String localName, String text) throws XMLStreamException {
+        mWriter.writeStartElement(localName);
+        writeCharacters(text);
+        mWriter.writeEndElement();
+    }
+
+    private interface XmlAction {
+
+        void write() throws XMLStreamException;
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright 2026 Patrik Karlström <patrik@trixon.se>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.mapollage.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a KMZ, a zip archive, with entries added from several threads.
+ * <p>
+ * Entries are compressed on a pool of their own and appended one at a time
+ * as they are done. JPEGs are stored as is, deflating them again gains
+ * nothing. Large files are deflated in chunks in parallel, each chunk primed
+ * with the end of the one before and flushed to a byte boundary, so that they
+ * join into one stream, spooled to a temp file and then appended. Zip64
+ * records are only written when needed.
+ *
+ * @author Patrik Karlström <patrik@trixon.se>
+ */
+public class KmzWriter implements Closeable {
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+
+    private final FileChannel mChannel;
+    private final ExecutorService mDeflateExecutor;
+    private final int mDosTime;
+    private final List<Entry> mEntries = new ArrayList<>();
+    private final ExecutorService mEntryExecutor;
+    private final ConcurrentLinkedQueue<IOException> mErrors = new ConcurrentLinkedQueue<>();
+    private final File mFile;
+    private final Object mLock = new Object();
+    private int mNumOfPending;
+    private final Object mPendingLock = new Object();
+    private long mPosition;
+
+    /**
+     * @param file the archive, replaced if it exists
+     * @throws IOException
+     */
+    public KmzWriter(File file) throws IOException {
+        mFile = file;
+        mChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+
+        var now = LocalDateTime.now();
+        mDosTime = (now.getYear() - 1980) << 25 | now.getMonthValue() << 21 | now.getDayOfMonth() << 16
+                | now.getHour() << 11 | now.getMinute() << 5 | now.getSecond() >> 1;
+
+        int numOfThreads = Runtime.getRuntime().availableProcessors();
+        mEntryExecutor = Executors.newFixedThreadPool(numOfThreads, createThreadFactory("Kmz"));
+        mDeflateExecutor = Executors.newFixedThreadPool(numOfThreads, createThreadFactory("Kmz-deflate"));
+    }
+
+    /**
+     * Stops the writing and deletes the archive.
+     */
+    public void abort() {
+        mEntryExecutor.shutdownNow();
+        mDeflateExecutor.shutdownNow();
+        try {
+            mChannel.close();
+        } catch (IOException ex) {
+            //nvm
+        }
+        mFile.delete();
+    }
+
+    /**
+     * Waits for the submitted entries and writes the central directory.
+     *
+     * @throws IOException the first error of an entry, if any
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            synchronized (mPendingLock) {
+                while (mNumOfPending > 0) {
+                    mPendingLock.wait();
+                }
+            }
+
+            var error = mErrors.peek();
+            if (error != null) {
+                throw error;
+            }
+
+            writeCentralDirectory();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            mEntryExecutor.shutdownNow();
+            mDeflateExecutor.shutdownNow();
+            mChannel.close();
+        }
+    }
+
+    /**
+     * @return the number of entries written so far
+     */
+    public int getNumOfEntries() {
+        synchronized (mLock) {
+            return mEntries.size();
+        }
+    }
+
+    /**
+     * Adds the file, deflated, in the background.
+     *
+     * @param name the name in the archive
+     * @param file the file
+     */
+    public void submitDeflated(String name, File file) {
+        submit(() -> writeDeflated(name, file));
+    }
+
+    /**
+     * Adds the file, stored as is, in the background.
+     *
+     * @param name the name in the archive
+     * @param file the file
+     */
+    public void submitStored(String name, File file) {
+        submit(() -> writeStored(name, file));
+    }
+
+    /**
+     * Adds the file, deflated, before returning.
+     *
+     * @param name the name in the archive
+     * @param file the file
+     * @throws IOException
+     */
+    public void writeDeflated(String name, File file) throws IOException {
+        File spool = null;
+        try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            int numOfChunks = (int) Math.max(1, (size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            var chunks = new MappedByteBuffer[numOfChunks];
+            for (int i = 0; i < numOfChunks; i++) {
+                long position = (long) i * CHUNK_SIZE;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(CHUNK_SIZE, size - position));
+            }
+
+            var crc = new CRC32();
+            if (numOfChunks == 1) {
+                crc.update(chunks[0].duplicate());
+                var data = deflate(chunks[0].duplicate(), null, true);
+                append(new Entry(name, Deflater.DEFLATED, crc.getValue(), data.length, size, 0), data);
+                return;
+            }
+
+            //Deflate to a spool first, the archive is only locked while appending
+            spool = File.createTempFile("kmz", ".deflate");
+            try (var spoolChannel = FileChannel.open(spool.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                int window = Runtime.getRuntime().availableProcessors() * 2;
+                long compressedSize = 0;
+
+                for (int first = 0; first < numOfChunks; first += window) {
+                    var futures = new ArrayList<Future<byte[]>>();
+                    for (int i = first; i < Math.min(numOfChunks, first + window); i++) {
+                        var chunk = chunks[i].duplicate();
+                        var dictionary = i == 0 ? null : chunks[i - 1].slice(chunks[i - 1].limit() - Math.min(DICTIONARY_SIZE, chunks[i - 1].limit()), Math.min(DICTIONARY_SIZE, chunks[i - 1].limit()));
+                        boolean last = i == numOfChunks - 1;
+                        futures.add(mDeflateExecutor.submit(() -> deflate(chunk, dictionary, last)));
+                    }
+
+                    for (int i = 0; i < futures.size(); i++) {
+                        crc.update(chunks[first + i].duplicate());
+                        var buffer = ByteBuffer.wrap(futures.get(i).get());
+                        compressedSize += buffer.remaining();
+                        while (buffer.hasRemaining()) {
+                            spoolChannel.write(buffer);
+                        }
+                    }
+                }
+
+                var entry = new Entry(name, Deflater.DEFLATED, crc.getValue(), compressedSize, size, 0);
+                synchronized (mLock) {
+                    entry = entry.at(mPosition);
+                    write(getLocalHeader(entry));
+                    for (long position = 0; position < compressedSize;) {
+                        position += spoolChannel.transferTo(position, compressedSize - position, mChannel);
+                    }
+                    mPosition += compressedSize;
+                    mEntries.add(entry);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        } finally {
+            if (spool != null) {
+                spool.delete();
+            }
+        }
+    }
+
+    private void append(Entry entry, byte[] data) throws IOException {
+        synchronized (mLock) {
+            entry = entry.at(mPosition);
+            write(getLocalHeader(entry));
+            write(ByteBuffer.wrap(data));
+            mEntries.add(entry);
+        }
+    }
+
+    private ThreadFactory createThreadFactory(String name) {
+        var threadNumber = new AtomicInteger();
+
+        return r -> {
+            var thread = new Thread(r, name + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private byte[] deflate(MappedByteBuffer input, MappedByteBuffer dictionary, boolean last) {
+        var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        var output = new ByteArrayOutputStream(input.remaining() / 4 + 64);
+        var buffer = new byte[64 * 1024];
+
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(input);
+
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    output.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } else {
+                //Flush to a byte boundary, without ending the stream
+                int length;
+                do {
+                    length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    output.write(buffer, 0, length);
+                } while (length == buffer.length || !deflater.needsInput());
+            }
+        } finally {
+            deflater.end();
+        }
+
+        return output.toByteArray();
+    }
+
+    private ByteBuffer getLocalHeader(Entry entry) {
+        boolean zip64 = isZip64(entry.size());
+        var name = entry.name().getBytes(StandardCharsets.UTF_8);
+        var buffer = ByteBuffer.allocate(30 + name.length + (zip64 ? 20 : 0)).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(0x04034b50);
+        buffer.putShort((short) (zip64 ? 45 : 20));
+        buffer.putShort((short) 0x0800);
+        buffer.putShort((short) entry.method());
+        buffer.putInt(mDosTime);
+        buffer.putInt((int) entry.crc());
+        buffer.putInt(zip64 ? -1 : (int) entry.compressedSize());
+        buffer.putInt(zip64 ? -1 : (int) entry.size());
+        buffer.putShort((short) name.length);
+        buffer.putShort((short) (zip64 ? 20 : 0));
+        buffer.put(name);
+        if (zip64) {
+            buffer.putShort((short) 0x0001);
+            buffer.putShort((short) 16);
+            buffer.putLong(entry.size());
+            buffer.putLong(entry.compressedSize());
+        }
+
+        return buffer.flip();
+    }
+
+    private boolean isZip64(long size) {
+        //Deflate may expand data that does not compress, by at most zlib's
+        //deflateBound plus a flush marker per chunk. The local header and the
+        //central directory both decide from this, so they always agree.
+        long maxCompressedSize = size + (size >> 12) + (size >> 14) + (size >> 25) + 13 + 6 * (size / CHUNK_SIZE + 1);
+
+        return maxCompressedSize >= ZIP64_LIMIT;
+    }
+
+    private void submit(IoAction action) {
+        synchronized (mPendingLock) {
+            mNumOfPending++;
+        }
+
+        mEntryExecutor.execute(() -> {
+            try {
+                action.run();
+            } catch (IOException ex) {
+                mErrors.add(ex);
+            } finally {
+                synchronized (mPendingLock) {
+                    if (--mNumOfPending == 0) {
+                        mPendingLock.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mPosition += mChannel.write(buffer);
+        }
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long start = mPosition;
+        for (var entry : mEntries) {
+            var name = entry.name().getBytes(StandardCharsets.UTF_8);
+            boolean zip64 = isZip64(entry.size()) || entry.offset() >= ZIP64_LIMIT;
+            var buffer = ByteBuffer.allocate(46 + name.length + (zip64 ? 28 : 0)).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(0x02014b50);
+            buffer.putShort((short) 45);
+            buffer.putShort((short) (zip64 ? 45 : 20));
+            buffer.putShort((short) 0x0800);
+            buffer.putShort((short) entry.method());
+            buffer.putInt(mDosTime);
+            buffer.putInt((int) entry.crc());
+            buffer.putInt(zip64 ? -1 : (int) entry.compressedSize());
+            buffer.putInt(zip64 ? -1 : (int) entry.size());
+            buffer.putShort((short) name.length);
+            buffer.putShort((short) (zip64 ? 28 : 0));
+            buffer.putShort((short) 0);
+            buffer.putShort((short) 0);
+            buffer.putShort((short) 0);
+            buffer.putInt(0);
+            buffer.putInt(zip64 ? -1 : (int) entry.offset());
+            buffer.put(name);
+            if (zip64) {
+                buffer.putShort((short) 0x0001);
+                buffer.putShort((short) 24);
+                buffer.putLong(entry.size());
+                buffer.putLong(entry.compressedSize());
+                buffer.putLong(entry.offset());
+            }
+            write(buffer.flip());
+        }
+
+        long size = mPosition - start;
+        boolean zip64 = mEntries.size() >= 0xFFFF || start >= ZIP64_LIMIT || size >= ZIP64_LIMIT;
+        var buffer = ByteBuffer.allocate(22 + (zip64 ? 76 : 0)).order(ByteOrder.LITTLE_ENDIAN);
+        if (zip64) {
+            long end = mPosition;
+            buffer.putInt(0x06064b50);
+            buffer.putLong(44);
+            buffer.putShort((short) 45);
+            buffer.putShort((short) 45);
+            buffer.putInt(0);
+            buffer.putInt(0);
+            buffer.putLong(mEntries.size());
+            buffer.putLong(mEntries.size());
+            buffer.putLong(size);
+            buffer.putLong(start);
+
+            buffer.putInt(0x07064b50);
+            buffer.putInt(0);
+            buffer.putLong(end);
+            buffer.putInt(1);
+        }
+        buffer.putInt(0x06054b50);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) (zip64 ? -1 : mEntries.size()));
+        buffer.putShort((short) (zip64 ? -1 : mEntries.size()));
+        buffer.putInt(zip64 ? -1 : (int) size);
+        buffer.putInt(zip64 ? -1 : (int) start);
+        buffer.putShort((short) 0);
+        write(buffer.flip());
+    }
+
+    private void writeStored(String name, File file) throws IOException {
+        var data = Files.readAllBytes(file.toPath());
+        var crc = new CRC32();
+        crc.update(data);
+        append(new Entry(name, 0, crc.getValue(), data.length, data.length, 0), data);
+    }
+
+    private record Entry(String name, int method, long crc, long compressedSize, long size, long offset) {
+
+        Entry at(long offset) {
+            return new Entry(name, method, crc, compressedSize, size, offset);
+        }
+    }
+
+    private interface IoAction {
+
+        void run() throws IOException;
+    }
+}
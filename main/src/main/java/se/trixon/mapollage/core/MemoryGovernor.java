@@ -0,0 +1,86 @@
+/*
+ * Copyright 2026 Patrik Karlström <patrik@trixon.se>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.mapollage.core;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.openide.util.NbPreferences;
+
+/**
+ * Admits decodes against a heap budget, so that a few huge photos decoded at
+ * the same time can not exhaust the heap.
+ * <p>
+ * The budget is held by a fair semaphore with one permit per KiB. A request
+ * larger than the whole budget is admitted alone.
+ *
+ * @author Patrik Karlström <patrik@trixon.se>
+ */
+public class MemoryGovernor {
+
+    public static final String KEY_MAX_MEGABYTES = "memoryGovernor.maxMegabytes";
+
+    private final LongAdder mNumOfWaits = new LongAdder();
+    private final int mPermits;
+    private final Semaphore mSemaphore;
+    private final LongAdder mWaitNanos = new LongAdder();
+
+    /**
+     * Creates a governor with the configured budget, half of the max heap by
+     * default.
+     */
+    public MemoryGovernor() {
+        long maxBytes = NbPreferences.forModule(MemoryGovernor.class).getInt(KEY_MAX_MEGABYTES, 0) * 1024L * 1024L;
+        if (maxBytes <= 0) {
+            maxBytes = Runtime.getRuntime().maxMemory() / 2;
+        }
+
+        mPermits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / 1024));
+        mSemaphore = new Semaphore(mPermits, true);
+    }
+
+    /**
+     * Waits until the memory is available.
+     *
+     * @param bytes the estimated memory
+     * @return the permits to hand back to {@link #release(int)}
+     * @throws InterruptedException
+     */
+    public int acquire(long bytes) throws InterruptedException {
+        int permits = (int) Math.max(1, Math.min(mPermits, (bytes + 1023) / 1024));
+
+        if (!mSemaphore.tryAcquire(permits, 0, TimeUnit.NANOSECONDS)) {
+            long startNanos = System.nanoTime();
+            mSemaphore.acquire(permits);
+            mWaitNanos.add(System.nanoTime() - startNanos);
+            mNumOfWaits.increment();
+        }
+
+        return permits;
+    }
+
+    public long getNumOfWaits() {
+        return mNumOfWaits.sum();
+    }
+
+    public double getWaitSeconds() {
+        return mWaitNanos.sum() / 1E9;
+    }
+
+    public void release(int permits) {
+        mSemaphore.release(permits);
+    }
+}
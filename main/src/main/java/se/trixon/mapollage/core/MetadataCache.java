@@ -0,0 +1,235 @@
+/*
+ * Copyright 2026 Patrik Karlström <patrik@trixon.se>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.mapollage.core;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.SerializedName;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.openide.modules.Places;
+import org.openide.util.NbPreferences;
+
+/**
+ * Persistent cache of the photo metadata used by Mapollage, shared by all
+ * tasks.
+ * <p>
+ * Entries are keyed by canonical path and are only valid as long as the size
+ * and modification time of the file are unchanged. Files that could not be
+ * parsed are remembered too, so they are skipped without being read again.
+ *
+ * @author Patrik Karlström <patrik@trixon.se>
+ */
+public class MetadataCache {
+
+    public static final String KEY_MAX_ENTRIES = "metadataCache.maxEntries";
+    public static final int DEFAULT_MAX_ENTRIES = 250_000;
+    private static final int FILE_FORMAT_VERSION = 3;
+    private static final Gson GSON = new Gson();
+
+    private boolean mDirty;
+    private final File mFile;
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final int mMaxEntries;
+    private final AtomicInteger mMisses = new AtomicInteger();
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    public static MetadataCache getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    private MetadataCache() {
+        mFile = new File(Places.getUserDirectory(), "var/metadata-cache.json.gz");
+        mMaxEntries = NbPreferences.forModule(MetadataCache.class).getInt(KEY_MAX_ENTRIES, DEFAULT_MAX_ENTRIES);
+        load();
+    }
+
+    /**
+     * Returns the cached metadata of the file if it is still valid.
+     *
+     * @param key the key of the file
+     * @return the entry, or null if the file has to be read
+     */
+    public synchronized Entry get(Key key) {
+        var entry = mEntries.get(key.path());
+
+        if (entry == null || entry.mSize != key.size() || entry.mLastModified != key.lastModified()) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+
+        mHits.incrementAndGet();
+
+        return entry;
+    }
+
+    public int getHits() {
+        return mHits.get();
+    }
+
+    public int getMisses() {
+        return mMisses.get();
+    }
+
+    /**
+     * Creates the cache key of the file.
+     *
+     * @param file the file
+     * @return the key
+     * @throws IOException if the file can not be stat'ed
+     */
+    public Key keyOf(File file) throws IOException {
+        var attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+
+        return new Key(file.getCanonicalPath(), attrs.size(), attrs.lastModifiedTime().toMillis());
+    }
+
+    public synchronized void put(Key key, Entry entry) {
+        entry.mSize = key.size();
+        entry.mLastModified = key.lastModified();
+        mEntries.put(key.path(), entry);
+        mDirty = true;
+
+        var iterator = mEntries.values().iterator();
+        while (mEntries.size() > mMaxEntries && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Writes the cache to disk if it has been modified.
+     *
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+        if (!mDirty) {
+            return;
+        }
+
+        var storage = new Storage();
+        storage.mFileFormatVersion = FILE_FORMAT_VERSION;
+        storage.mTimeZone = TimeZone.getDefault().getID();
+        storage.mEntries = new LinkedHashMap<>(mEntries);
+
+        FileUtils.forceMkdir(mFile.getParentFile());
+        var tmpFile = new File(mFile.getParentFile(), mFile.getName() + ".tmp");
+        try (var writer = new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(tmpFile.toPath())), StandardCharsets.UTF_8)) {
+            GSON.toJson(storage, writer);
+        }
+
+        Files.move(tmpFile.toPath(), mFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        mDirty = false;
+    }
+
+    /**
+     * Marks the cache as modified after an entry was updated in place, the
+     * dimensions of non-JPEG files are only read when needed.
+     */
+    synchronized void touch() {
+        mDirty = true;
+    }
+
+    private void load() {
+        if (!mFile.isFile()) {
+            return;
+        }
+
+        Storage storage = null;
+        try (var reader = new InputStreamReader(new GZIPInputStream(Files.newInputStream(mFile.toPath())), StandardCharsets.UTF_8)) {
+            storage = GSON.fromJson(reader, Storage.class);
+        } catch (IOException | JsonParseException ex) {
+            //nvm, rebuild
+        }
+
+        //Dates are stored as millis in the default time zone
+        if (storage != null
+                && storage.mFileFormatVersion == FILE_FORMAT_VERSION
+                && TimeZone.getDefault().getID().equals(storage.mTimeZone)
+                && storage.mEntries != null) {
+            mEntries.putAll(storage.mEntries);
+        }
+    }
+
+    public record Key(String path, long size, long lastModified) {
+
+    }
+
+    public static class Entry {
+
+        @SerializedName("alt")
+        String mAltitude;
+        @SerializedName("bearing")
+        String mBearing;
+        @SerializedName("id")
+        String mContentId;
+        @SerializedName("date")
+        Long mDate;
+        @SerializedName("dms")
+        String mDegreesMinutesSeconds;
+        @SerializedName("error")
+        String mError;
+        @SerializedName("exif")
+        boolean mExif;
+        @SerializedName("gps")
+        boolean mGps;
+        @SerializedName("height")
+        int mHeight;
+        @SerializedName("modified")
+        long mLastModified;
+        @SerializedName("lat")
+        Double mLat;
+        @SerializedName("lon")
+        Double mLon;
+        @SerializedName("orientation")
+        int mOrientation = 1;
+        @SerializedName("previewLength")
+        int mPreviewLength;
+        @SerializedName("previewOffset")
+        long mPreviewOffset;
+        @SerializedName("size")
+        long mSize;
+        @SerializedName("width")
+        int mWidth;
+    }
+
+    private static class Holder {
+
+        private static final MetadataCache INSTANCE = new MetadataCache();
+    }
+
+    private static class Storage {
+
+        @SerializedName("entries")
+        private LinkedHashMap<String, Entry> mEntries;
+        @SerializedName("fileFormatVersion")
+        private int mFileFormatVersion;
+        @SerializedName("timeZone")
+        private String mTimeZone;
+    }
+}
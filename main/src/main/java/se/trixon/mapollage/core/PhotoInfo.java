@@ -18,21 +18,22 @@ package se.trixon.mapollage.core;
 import com.drew.imaging.ImageMetadataReader;
 import com.drew.imaging.ImageProcessingException;
 import com.drew.lang.GeoLocation;
-import com.drew.metadata.Metadata;
 import com.drew.metadata.MetadataException;
 import com.drew.metadata.exif.ExifIFD0Directory;
 import com.drew.metadata.exif.ExifSubIFDDirectory;
+import com.drew.metadata.exif.ExifThumbnailDirectory;
+import com.drew.metadata.exif.GpsDescriptor;
 import com.drew.metadata.exif.GpsDirectory;
-import java.awt.Color;
 import java.awt.Dimension;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.TimeZone;
-import javax.imageio.ImageIO;
 import se.trixon.almond.util.GraphicsHelper;
 import se.trixon.almond.util.ImageScaler;
 
@@ -42,14 +43,12 @@ import se.trixon.almond.util.ImageScaler;
  */
 public class PhotoInfo {
 
-    private ExifSubIFDDirectory mExifDirectory;
+    private MetadataCache.Entry mEntry;
     private final File mFile;
     private final double mFormat = 1000000;
     private GeoLocation mGeoLocation;
-    private GpsDirectory mGpsDirectory;
     private final ImageScaler mImageScaler = ImageScaler.getInstance();
-    private Metadata mMetadata;
-    private int mOrientation;
+    private final MetadataCache mMetadataCache = MetadataCache.getInstance();
     private Dimension mOriginalDimension = null;
     private Task mTask;
 
@@ -58,60 +57,96 @@ public class PhotoInfo {
         mTask = task;
     }
 
-    public void createThumbnail(File dest) throws IOException {
-        if (!dest.exists()) {
-            int borderSize = mTask.getPhoto().getThumbnailBorderSize();
-            int thumbnailSize = mTask.getPhoto().getThumbnailSize();
+    /**
+     * Creates the thumbnail renditions that do not exist, taking them from the
+     * thumbnail store if they have been rendered before. The photo is decoded
+     * once, at the size of the largest rendition that has to be rendered.
+     *
+     * @param renditions the renditions
+     * @param memoryGovernor admits the decode
+     * @return true if any rendition was rendered
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public boolean createThumbnails(List<ThumbnailRenderer.Rendition> renditions, MemoryGovernor memoryGovernor) throws IOException, InterruptedException {
+        var store = ThumbnailStore.getInstance();
+        var missingRenditions = new ArrayList<ThumbnailRenderer.Rendition>();
+        for (var rendition : renditions) {
+            if (rendition.dest().exists()) {
+                continue;
+            }
 
-            var scaledImage = mImageScaler.getScaledImage(mFile, new Dimension(thumbnailSize - borderSize * 2, thumbnailSize - borderSize * 2));
-            scaledImage = GraphicsHelper.rotate(scaledImage, mOrientation);
+            if (!store.isEnabled() || !store.link(store.getKey(getContentId(), rendition.spec()), rendition.dest())) {
+                missingRenditions.add(rendition);
+            }
+        }
 
-            int width = scaledImage.getWidth();
-            int height = scaledImage.getHeight();
-            int borderedImageWidth = width + borderSize * 2;
-            int borderedImageHeight = height + borderSize * 2;
+        if (missingRenditions.isEmpty()) {
+            return false;
+        }
 
-            var borderedImage = new BufferedImage(borderedImageWidth, borderedImageHeight, BufferedImage.TYPE_3BYTE_BGR);
+        int maxSize = 0;
+        for (var rendition : missingRenditions) {
+            maxSize = Math.max(maxSize, rendition.spec().getInnerSize());
+        }
 
-            var g2 = borderedImage.createGraphics();
-            g2.setColor(Color.decode("#" + mTask.getPhoto().getThumbnailBorderColor()));
-            g2.fillRect(0, 0, borderedImageWidth, borderedImageHeight);
-            g2.drawImage(scaledImage, borderSize, borderSize, width + borderSize, height + borderSize, 0, 0, width, height, Color.YELLOW, null);
+        var dimension = getOriginalDimension();
+        int permits = memoryGovernor.acquire(ThumbnailDecoder.estimateMemory(dimension.width, dimension.height, maxSize));
+        try {
+            var image = ThumbnailDecoder.decode(mFile, maxSize, mEntry);
+            if (image == null) {
+                if (ThumbnailDecoder.isHuge(dimension.width, dimension.height)) {
+                    //The scaler decodes the full resolution first
+                    throw new IOException(String.format("E000 %s", mFile.getAbsolutePath()));
+                }
 
-            try {
-                ImageIO.write(borderedImage, "jpg", dest);
-            } catch (IOException ex) {
-                throw new IOException(String.format("E000 %s", dest.getAbsolutePath()));
+                //Trade the permits for those of the full raster, without holding any while waiting
+                memoryGovernor.release(permits);
+                permits = 0;
+                permits = memoryGovernor.acquire((long) dimension.width * dimension.height * 4);
+                image = mImageScaler.getScaledImage(mFile, new Dimension(maxSize, maxSize));
             }
+
+            boolean rendered = false;
+            for (var rendition : missingRenditions) {
+                var spec = rendition.spec();
+                var sourceImage = image;
+                if (store.isEnabled()) {
+                    rendered |= store.provide(store.getKey(getContentId(), spec), rendition.dest(), dest -> writeThumbnail(sourceImage, spec, dest));
+                } else {
+                    writeThumbnail(sourceImage, spec, rendition.dest());
+                    rendered = true;
+                }
+            }
+
+            return rendered;
+        } finally {
+            memoryGovernor.release(permits);
         }
     }
 
-    public Date getDate() {
-        Date date;
+    public String getAltitudeDescription() {
+        return mEntry.mAltitude;
+    }
 
-        if (mExifDirectory.containsTag(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL)) {
-            date = mExifDirectory.getDate(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL, TimeZone.getDefault());
-        } else {
-            long millis = 0;
-            try {
-                var attr = Files.readAttributes(mFile.toPath(), BasicFileAttributes.class);
-                millis = attr.lastModifiedTime().toMillis();
-            } catch (IOException ex) {
-                millis = mFile.lastModified();
-            } finally {
-                date = new Date(millis);
-            }
-        }
+    public String getBearingDescription() {
+        return mEntry.mBearing;
+    }
 
-        return date;
+    /**
+     * @return an id derived from the header, size and modification time of
+     * the file, used to name the thumbnail and the styles of the placemark
+     */
+    public String getContentId() {
+        return mEntry.mContentId;
     }
 
-    public ExifSubIFDDirectory getExifDirectory() {
-        return mExifDirectory;
+    public String getCoordinateDescription() {
+        return mEntry.mDegreesMinutesSeconds;
     }
 
-    public GpsDirectory getGpsDirectory() {
-        return mGpsDirectory;
+    public Date getDate() {
+        return mEntry.mDate == null ? null : new Date(mEntry.mDate);
     }
 
     public double getLat() {
@@ -126,16 +161,17 @@ public class PhotoInfo {
         return lonInt / mFormat;
     }
 
-    public Metadata getMetadata() {
-        return mMetadata;
-    }
-
     public int getOrientation() {
-        return mOrientation;
+        return mEntry.mOrientation;
     }
 
     public Dimension getOriginalDimension() throws IOException {
         if (mOriginalDimension == null) {
+            if (mEntry.mWidth > 0 && mEntry.mHeight > 0) {
+                mOriginalDimension = new Dimension(mEntry.mWidth, mEntry.mHeight);
+                return mOriginalDimension;
+            }
+
             try {
                 mOriginalDimension = GraphicsHelper.getImgageDimension(mFile);
             } catch (IOException ex) {
@@ -144,62 +180,82 @@ public class PhotoInfo {
 
             if (mOriginalDimension == null) {
                 mOriginalDimension = new Dimension(200, 200);
+            } else {
+                mEntry.mWidth = mOriginalDimension.width;
+                mEntry.mHeight = mOriginalDimension.height;
+                mMetadataCache.touch();
             }
         }
 
         return mOriginalDimension;
     }
 
+    /**
+     * @param spec the thumbnail settings
+     * @return the size of the rendered thumbnail, border included
+     * @throws IOException
+     */
+    public Dimension getThumbnailDimension(ThumbnailSpec spec) throws IOException {
+        var dimension = getOriginalDimension();
+        int orientation = getOrientation();
+
+        return spec.getDimension(dimension.width, dimension.height, orientation == 6 || orientation == 8);
+    }
+
     public boolean hasExif() {
-        return mExifDirectory != null;
+        return mEntry != null && mEntry.mExif;
     }
 
     public boolean hasGps() {
-        return hasExif() && mGpsDirectory != null;
+        return hasExif() && mEntry.mGps;
     }
 
     public void init() throws ImageProcessingException, IOException {
         try {
-            mMetadata = ImageMetadataReader.readMetadata(mFile);
-            mExifDirectory = mMetadata.getFirstDirectoryOfType(ExifSubIFDDirectory.class);
-            mGpsDirectory = mMetadata.getFirstDirectoryOfType(GpsDirectory.class);
-            mGeoLocation = getGeoLocation();
-
-            try {
-                var rotationDirectory = mMetadata.getFirstDirectoryOfType(ExifIFD0Directory.class);
-                mOrientation = rotationDirectory.getInt(ExifSubIFDDirectory.TAG_ORIENTATION);
-            } catch (MetadataException | NullPointerException ex) {
-                mOrientation = 1;
+            var key = mMetadataCache.keyOf(mFile);
+            mEntry = mMetadataCache.get(key);
+
+            if (mEntry == null) {
+                try {
+                    mEntry = read(key);
+                } catch (ImageProcessingException ex) {
+                    var entry = new MetadataCache.Entry();
+                    entry.mError = ex.getMessage();
+                    mMetadataCache.put(key, entry);
+                    throw ex;
+                }
+                mMetadataCache.put(key, mEntry);
+            } else if (mEntry.mError != null) {
+                //Known to be unreadable, unchanged since
+                var error = mEntry.mError;
+                mEntry = null;
+                throw new ImageProcessingException(error);
             }
+
+            mGeoLocation = getGeoLocation();
         } catch (IOException ex) {
             throw new IOException(String.format("E000 %s", mFile.getAbsolutePath()));
         }
     }
 
     public boolean isZeroCoordinate() {
-        return mGpsDirectory == null || mGpsDirectory.getGeoLocation() == null || mGpsDirectory.getGeoLocation().isZero();
+        return mEntry.mLat == null || (mEntry.mLat == 0.0 && mEntry.mLon == 0.0);
     }
 
     private GeoLocation getGeoLocation() throws ImageProcessingException {
         var defaultGeoLocation = new GeoLocation(mTask.getSource().getDefaultLat(), mTask.getSource().getDefaultLon());
         GeoLocation geoLocation = null;
 
+        if (mEntry.mLat != null) {
+            geoLocation = new GeoLocation(mEntry.mLat, mEntry.mLon);
+        }
+
         if (mTask.getSource().isIncludeNullCoordinate()) {
-            try {
-                geoLocation = mGpsDirectory.getGeoLocation();
-                if (geoLocation.isZero()) {
-                    geoLocation = defaultGeoLocation;
-                }
-            } catch (Exception e) {
-                //never error
-            }
-        } else {
-            try {
-                geoLocation = mGpsDirectory.getGeoLocation();
-                geoLocation.isZero(); //Just force a reference
-            } catch (NullPointerException e) {
-                throw new ImageProcessingException(String.format("E012 %s", mFile.getAbsolutePath()));
+            if (geoLocation != null && geoLocation.isZero()) {
+                geoLocation = defaultGeoLocation;
             }
+        } else if (geoLocation == null) {
+            throw new ImageProcessingException(String.format("E012 %s", mFile.getAbsolutePath()));
         }
 
         if (geoLocation == null) {
@@ -208,4 +264,130 @@ public class PhotoInfo {
 
         return geoLocation;
     }
+
+    private MetadataCache.Entry read(MetadataCache.Key key) throws ImageProcessingException, IOException {
+        var header = JpegHeaderReader.read(mFile, key.size(), key.lastModified());
+        var metadata = header.metadata() == null ? ImageMetadataReader.readMetadata(mFile) : header.metadata();
+        var exifDirectory = metadata.getFirstDirectoryOfType(ExifSubIFDDirectory.class);
+        var gpsDirectory = metadata.getFirstDirectoryOfType(GpsDirectory.class);
+        var entry = new MetadataCache.Entry();
+
+        entry.mExif = exifDirectory != null;
+        entry.mGps = gpsDirectory != null;
+
+        entry.mContentId = header.contentId();
+        entry.mWidth = header.width();
+        entry.mHeight = header.height();
+
+        var thumbnailDirectory = metadata.getFirstDirectoryOfType(ExifThumbnailDirectory.class);
+        if (header.metadata() != null && thumbnailDirectory != null && thumbnailDirectory.containsTag(ExifThumbnailDirectory.TAG_THUMBNAIL_LENGTH)) {
+            var offset = thumbnailDirectory.getAdjustedThumbnailOffset();
+            if (offset != null) {
+                entry.mPreviewOffset = header.exifOffset() + offset;
+                entry.mPreviewLength = thumbnailDirectory.getInteger(ExifThumbnailDirectory.TAG_THUMBNAIL_LENGTH);
+            }
+        }
+
+        if (exifDirectory != null && exifDirectory.containsTag(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL)) {
+            var date = exifDirectory.getDate(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL, TimeZone.getDefault());
+            entry.mDate = date == null ? null : date.getTime();
+        } else {
+            entry.mDate = key.lastModified();
+        }
+
+        if (gpsDirectory != null) {
+            var geoLocation = gpsDirectory.getGeoLocation();
+            if (geoLocation != null) {
+                entry.mLat = geoLocation.getLatitude();
+                entry.mLon = geoLocation.getLongitude();
+            }
+
+            var gpsDescriptor = new GpsDescriptor(gpsDirectory);
+            entry.mAltitude = gpsDescriptor.getGpsAltitudeDescription();
+            entry.mDegreesMinutesSeconds = gpsDescriptor.getDegreesMinutesSecondsDescription();
+            entry.mBearing = gpsDescriptor.getGpsDirectionDescription(GpsDirectory.TAG_DEST_BEARING);
+        }
+
+        try {
+            var rotationDirectory = metadata.getFirstDirectoryOfType(ExifIFD0Directory.class);
+            entry.mOrientation = rotationDirectory.getInt(ExifSubIFDDirectory.TAG_ORIENTATION);
+        } catch (MetadataException | NullPointerException ex) {
+            entry.mOrientation = 1;
+        }
+
+        return entry;
+    }
+
+    /**
+     * Halves the image until it is less than twice the size, bilinear
+     * interpolation alone drops too many pixels when shrinking icons.
+     */
+    private BufferedImage reduce(BufferedImage image, int maxSize) {
+        while (Math.max(image.getWidth(), image.getHeight()) > maxSize * 2) {
+            var halvedImage = new BufferedImage(Math.max(1, image.getWidth() / 2), Math.max(1, image.getHeight() / 2), BufferedImage.TYPE_INT_RGB);
+            var g2 = halvedImage.createGraphics();
+            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g2.drawImage(image, 0, 0, halvedImage.getWidth(), halvedImage.getHeight(), null);
+            g2.dispose();
+            image = halvedImage;
+        }
+
+        return image;
+    }
+
+    private void writeThumbnail(BufferedImage image, ThumbnailSpec spec, File dest) throws IOException {
+        int borderSize = spec.borderSize();
+        int maxSize = spec.getInnerSize();
+        image = reduce(image, maxSize);
+
+        //Sized from the header when known, so it matches getThumbnailDimension exactly
+        var dimension = mEntry.mWidth > 0 && mEntry.mHeight > 0
+                ? spec.getDimension(mEntry.mWidth, mEntry.mHeight, false)
+                : spec.getDimension(image.getWidth(), image.getHeight(), false);
+
+        //Scale, rotate and frame in one pass
+        int width = dimension.width - borderSize * 2;
+        int height = dimension.height - borderSize * 2;
+        int orientation = getOrientation();
+        boolean quarterTurn = orientation == 6 || orientation == 8;
+
+        int borderedImageWidth = (quarterTurn ? height : width) + borderSize * 2;
+        int borderedImageHeight = (quarterTurn ? width : height) + borderSize * 2;
+
+        var canvas = ThumbnailCanvas.get();
+        var borderedImage = canvas.getImage(borderedImageWidth, borderedImageHeight);
+
+        var transform = AffineTransform.getTranslateInstance(borderSize, borderSize);
+        switch (orientation) {
+            case 3 -> {
+                transform.translate(width, height);
+                transform.quadrantRotate(2);
+            }
+            case 6 -> {
+                transform.translate(height, 0);
+                transform.quadrantRotate(1);
+            }
+            case 8 -> {
+                transform.translate(0, width);
+                transform.quadrantRotate(-1);
+            }
+            default -> {
+            }
+        }
+        transform.scale((double) width / image.getWidth(), (double) height / image.getHeight());
+
+        var g2 = borderedImage.createGraphics();
+        g2.setColor(canvas.getBorderColor(spec.borderColor()));
+        g2.fillRect(0, 0, borderedImageWidth, borderedImageHeight);
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g2.drawImage(image, transform, null);
+        g2.dispose();
+
+        try {
+            canvas.write(borderedImage, dest);
+        } catch (IOException ex) {
+            throw new IOException(String.format("E000 %s", dest.getAbsolutePath()));
+        }
+    }
 }
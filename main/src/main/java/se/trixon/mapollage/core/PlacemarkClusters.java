@@ -0,0 +1,211 @@
+/*
+ * Copyright 2026 Patrik Karlström <patrik@trixon.se>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.mapollage.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * Clusters the placemarks on a grid of the world, level by level.
+ * <p>
+ * A cell at level n is 360/2^n degrees wide and 180/2^n degrees high, so the
+ * cell of a placemark is known when it is added. Each cell with placemarks
+ * gets a cluster with the count, the centroid and the icon of a
+ * representative placemark. The regions of the cells take turns: a cluster is
+ * shown while its cell is between half and the whole of LOD_PIXELS on screen,
+ * and the placemarks once the cells of the finest level reach LOD_PIXELS. A
+ * cluster with the same placemarks over several levels is written once.
+ * <p>
+ * Only the cells of the finest level are kept while adding, they are sorted
+ * once and the coarser levels are merged from runs of neighbours.
+ *
+ * @author Patrik Karlström <patrik@trixon.se>
+ */
+public class PlacemarkClusters {
+
+    private static final int LOD_PIXELS = 256;
+
+    private final Map<Long, Cluster> mCells = new HashMap<>();
+    private final int mLevel;
+
+    /**
+     * @param level the finest level
+     */
+    public PlacemarkClusters(int level) {
+        mLevel = Math.max(1, Math.min(24, level));
+    }
+
+    /**
+     * Adds a placemark to the cluster of its cell.
+     *
+     * @param lon the longitude
+     * @param lat the latitude
+     * @param styleMapId the style of the placemark
+     */
+    public void add(double lon, double lat, String styleMapId) {
+        int x = getX(lon);
+        int y = getY(lat);
+        var cluster = mCells.computeIfAbsent(((long) x << 32) | y, k -> new Cluster(mLevel, x, y, styleMapId));
+        cluster.mCount++;
+        cluster.mSumLon += lon;
+        cluster.mSumLat += lat;
+    }
+
+    /**
+     * Spools the clusters, every cluster as a placemark of its own.
+     *
+     * @param spool the spool
+     * @param folder the folder the placemarks are added to
+     * @param styles the styles, the cluster styles are added to
+     * @param styleUrlPrefix the file of the styles, empty for this file
+     * @param names the name, given the count
+     * @return the number of clusters
+     * @throws IOException
+     */
+    public int write(KmlWriter spool, KmlFolder folder, KmlStyles styles, String styleUrlPrefix, IntFunction<String> names) throws IOException {
+        var clusters = new ArrayList<>(mCells.values());
+        clusters.sort(Comparator.comparingLong(cluster -> getMortonKey(cluster.mX, cluster.mY)));
+        var done = new ArrayList<Cluster>();
+
+        for (int level = mLevel - 1; level >= 0; level--) {
+            var parents = new ArrayList<Cluster>();
+            for (int i = 0; i < clusters.size();) {
+                var first = clusters.get(i);
+                int shift = first.mLevel - level;
+                int x = first.mX >> shift;
+                int y = first.mY >> shift;
+                int j = i + 1;
+                while (j < clusters.size() && isInCell(clusters.get(j), level, x, y)) {
+                    j++;
+                }
+
+                if (j - i == 1) {
+                    first.mTopLevel = level;
+                    parents.add(first);
+                } else {
+                    var children = clusters.subList(i, j);
+                    var parent = new Cluster(level, x, y, getLargest(children).mStyleMapId);
+                    for (var child : children) {
+                        parent.mCount += child.mCount;
+                        parent.mSumLon += child.mSumLon;
+                        parent.mSumLat += child.mSumLat;
+                    }
+                    done.addAll(children);
+                    parents.add(parent);
+                }
+                i = j;
+            }
+            clusters = parents;
+        }
+        done.addAll(clusters);
+
+        for (var cluster : done) {
+            double width = 360.0 / (1 << cluster.mLevel);
+            double height = 180.0 / (1 << cluster.mLevel);
+            double west = -180 + cluster.mX * width;
+            double south = -90 + cluster.mY * height;
+            double minLodPixels = cluster.mTopLevel == 0 ? 0 : LOD_PIXELS / Math.pow(2, cluster.mLevel - cluster.mTopLevel + 1);
+
+            long position = spool.getPosition();
+            spool.startPlacemark(names.apply(cluster.mCount));
+            spool.writeSnippet();
+            spool.writeElement("styleUrl", styleUrlPrefix + "#" + styles.getClusterStyleMapId(cluster.mStyleMapId));
+            spool.writeRegion(south + height, south, west + width, west, minLodPixels, LOD_PIXELS);
+            spool.writePoint(cluster.mSumLon / cluster.mCount, cluster.mSumLat / cluster.mCount);
+            spool.endPlacemark();
+            folder.addPlacemark(position, spool.getPosition() - position);
+        }
+
+        return done.size();
+    }
+
+    /**
+     * Writes the region of a placemark, its cell at the finest level.
+     *
+     * @param writer the writer
+     * @param lon the longitude
+     * @param lat the latitude
+     * @throws IOException
+     */
+    public void writeRegion(KmlWriter writer, double lon, double lat) throws IOException {
+        double width = 360.0 / (1 << mLevel);
+        double height = 180.0 / (1 << mLevel);
+        double west = -180 + getX(lon) * width;
+        double south = -90 + getY(lat) * height;
+
+        writer.writeRegion(south + height, south, west + width, west, LOD_PIXELS, -1);
+    }
+
+    private Cluster getLargest(List<Cluster> clusters) {
+        var largest = clusters.get(0);
+        for (var cluster : clusters) {
+            if (cluster.mCount > largest.mCount) {
+                largest = cluster;
+            }
+        }
+
+        return largest;
+    }
+
+    private long getMortonKey(int x, int y) {
+        long key = 0;
+        for (int bit = 0; bit < mLevel; bit++) {
+            key |= ((long) (x >> bit) & 1) << (2 * bit);
+            key |= ((long) (y >> bit) & 1) << (2 * bit + 1);
+        }
+
+        return key;
+    }
+
+    private int getX(double lon) {
+        return Math.max(0, Math.min((1 << mLevel) - 1, (int) Math.floor((lon + 180) / 360 * (1 << mLevel))));
+    }
+
+    private int getY(double lat) {
+        return Math.max(0, Math.min((1 << mLevel) - 1, (int) Math.floor((lat + 90) / 180 * (1 << mLevel))));
+    }
+
+    private boolean isInCell(Cluster cluster, int level, int x, int y) {
+        int shift = cluster.mLevel - level;
+
+        return cluster.mX >> shift == x && cluster.mY >> shift == y;
+    }
+
+    private static class Cluster {
+
+        private int mCount;
+        private final int mLevel;
+        private final String mStyleMapId;
+        private double mSumLat;
+        private double mSumLon;
+        private int mTopLevel;
+        private final int mX;
+        private final int mY;
+
+        Cluster(int level, int x, int y, String styleMapId) {
+            mLevel = level;
+            mStyleMapId = styleMapId;
+            mTopLevel = level;
+            mX = x;
+            mY = y;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2026 Patrik Karlström <patrik@trixon.se>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.mapollage.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Partitions the placemarks into a quadtree of tiles, a super-overlay.
+ * <p>
+ * Each tile is a document of its own, with a region that hides it until it
+ * covers enough of the view, and network links to its four children. A tile
+ * keeps up to its capacity of placemarks, picked from its quadrants in turn so
+ * that they are spread out, and hands the rest down. The tiles at the max
+ * depth keep all of theirs. Every placemark is in one tile only, and the
+ * placemarks of a tile stay visible when zooming in to its children.
+ *
+ * @author Patrik Karlström <patrik@trixon.se>
+ */
+public class RegionTiles {
+
+    public static final String ROOT_FILE_NAME = "tile.kml";
+    private static final int MIN_LOD_PIXELS = 128;
+    private static final double MIN_SPAN = 0.01;
+
+    private final int mCapacity;
+    private long[] mCounts = new long[0];
+    private final File mDir;
+    private double[] mLats = new double[0];
+    private double[] mLons = new double[0];
+    private final int mMaxDepth;
+    private int mNumOfTiles;
+    private long[] mPositions = new long[0];
+    private int mSize;
+
+    /**
+     * @param dir the directory the tiles are written to
+     * @param capacity the max number of placemarks of a tile above the max
+     * depth
+     * @param maxDepth the max depth of the tree, the root is at depth 0
+     */
+    public RegionTiles(File dir, int capacity, int maxDepth) {
+        mDir = dir;
+        mCapacity = Math.max(1, capacity);
+        mMaxDepth = Math.max(0, maxDepth);
+    }
+
+    /**
+     * Adds a spooled placemark.
+     *
+     * @param lon the longitude
+     * @param lat the latitude
+     * @param position the position in the spool
+     * @param count the length in the spool
+     */
+    public void add(double lon, double lat, long position, long count) {
+        if (mSize == mLons.length) {
+            int length = Math.max(256, mSize * 2);
+            mLons = Arrays.copyOf(mLons, length);
+            mLats = Arrays.copyOf(mLats, length);
+            mPositions = Arrays.copyOf(mPositions, length);
+            mCounts = Arrays.copyOf(mCounts, length);
+        }
+
+        mLons[mSize] = lon;
+        mLats[mSize] = lat;
+        mPositions[mSize] = position;
+        mCounts[mSize] = count;
+        mSize++;
+    }
+
+    public File getDir() {
+        return mDir;
+    }
+
+    /**
+     * Writes the tiles, replacing those of earlier runs.
+     *
+     * @param spool the spool of the placemarks
+     * @return the number of tiles written
+     * @throws IOException
+     */
+    public int write(KmlWriter spool) throws IOException {
+        var oldFiles = mDir.listFiles((dir, name) -> name.startsWith("tile") && name.endsWith(".kml"));
+        for (var file : oldFiles == null ? new File[0] : oldFiles) {
+            Files.deleteIfExists(file.toPath());
+        }
+
+        var indexes = new int[mSize];
+        double north = -90, south = 90, east = -180, west = 180;
+        for (int i = 0; i < mSize; i++) {
+            indexes[i] = i;
+            north = Math.max(north, mLats[i]);
+            south = Math.min(south, mLats[i]);
+            east = Math.max(east, mLons[i]);
+            west = Math.min(west, mLons[i]);
+        }
+
+        if (mSize == 0) {
+            north = south = east = west = 0;
+        }
+
+        //A single place, or a line of places, still needs an area to show up on screen
+        if (north - south < MIN_SPAN) {
+            double lat = (north + south) / 2;
+            north = Math.min(90, lat + MIN_SPAN / 2);
+            south = Math.max(-90, lat - MIN_SPAN / 2);
+        }
+        if (east - west < MIN_SPAN) {
+            double lon = (east + west) / 2;
+            east = Math.min(180, lon + MIN_SPAN / 2);
+            west = Math.max(-180, lon - MIN_SPAN / 2);
+        }
+
+        mNumOfTiles = 0;
+        writeTile(spool, "", indexes, new Bounds(north, south, east, west), 0);
+
+        return mNumOfTiles;
+    }
+
+    private String getFileName(String key) {
+        return key.isEmpty() ? ROOT_FILE_NAME : "tile-%s.kml".formatted(key);
+    }
+
+    private int getQuadrant(Bounds bounds, int index) {
+        boolean north = mLats[index] >= bounds.getMidLat();
+        boolean east = mLons[index] >= bounds.getMidLon();
+
+        return north ? (east ? 0 : 1) : (east ? 3 : 2);
+    }
+
+    private void writeTile(KmlWriter spool, String key, int[] indexes, Bounds bounds, int depth) throws IOException {
+        mNumOfTiles++;
+        int[] kept;
+        var quadrants = new int[4][];
+
+        if (indexes.length <= mCapacity || depth >= mMaxDepth) {
+            kept = indexes;
+        } else {
+            //Split by quadrant, keeping the spool order
+            var sizes = new int[4];
+            for (int index : indexes) {
+                sizes[getQuadrant(bounds, index)]++;
+            }
+            for (int q = 0; q < 4; q++) {
+                quadrants[q] = new int[sizes[q]];
+                sizes[q] = 0;
+            }
+            for (int index : indexes) {
+                int q = getQuadrant(bounds, index);
+                quadrants[q][sizes[q]++] = index;
+            }
+
+            //Share the capacity between the quadrants in turn
+            var quotas = new int[4];
+            for (int numOfKept = 0; numOfKept < mCapacity;) {
+                for (int q = 0; q < 4 && numOfKept < mCapacity; q++) {
+                    if (quotas[q] < quadrants[q].length) {
+                        quotas[q]++;
+                        numOfKept++;
+                    }
+                }
+            }
+
+            //Keep evenly spaced placemarks of each quadrant, hand down the rest
+            kept = new int[mCapacity];
+            int k = 0;
+            for (int q = 0; q < 4; q++) {
+                int length = quadrants[q].length;
+                var rest = new int[length - quotas[q]];
+                int r = 0;
+                int next = 0;
+                for (int i = 0; i < length; i++) {
+                    if (next < quotas[q] && i == (int) ((long) next * length / quotas[q])) {
+                        kept[k++] = quadrants[q][i];
+                        next++;
+                    } else {
+                        rest[r++] = quadrants[q][i];
+                    }
+                }
+                quadrants[q] = rest;
+            }
+            Arrays.sort(kept);
+        }
+
+        try (var writer = new KmlWriter(new File(mDir, getFileName(key)))) {
+            writer.startDocument(key.isEmpty() ? null : key);
+            writer.writeRegion(bounds.north(), bounds.south(), bounds.east(), bounds.west(), depth == 0 ? 0 : MIN_LOD_PIXELS, -1);
+
+            //Copy runs of placemarks that are adjacent in the spool at once
+            for (int i = 0; i < kept.length;) {
+                long position = mPositions[kept[i]];
+                long count = mCounts[kept[i]];
+                int j = i + 1;
+                while (j < kept.length && mPositions[kept[j]] == position + count) {
+                    count += mCounts[kept[j]];
+                    j++;
+                }
+                writer.copy(spool, position, count);
+                i = j;
+            }
+
+            for (int q = 0; q < 4; q++) {
+                if (quadrants[q] != null && quadrants[q].length > 0) {
+                    var childKey = key + q;
+                    var childBounds = bounds.getQuadrant(q);
+                    writer.writeNetworkLink(childKey, getFileName(childKey),
+                            childBounds.north(), childBounds.south(), childBounds.east(), childBounds.west(), MIN_LOD_PIXELS);
+                }
+            }
+
+            writer.endDocument();
+        }
+
+        for (int q = 0; q < 4; q++) {
+            if (quadrants[q] != null && quadrants[q].length > 0) {
+                writeTile(spool, key + q, quadrants[q], bounds.getQuadrant(q), depth + 1);
+            }
+        }
+    }
+
+    private record Bounds(double north, double south, double east, double west) {
+
+        double getMidLat() {
+            return (north + south) / 2;
+        }
+
+        double getMidLon() {
+            return (east + west) / 2;
+        }
+
+        /**
+         * @param quadrant 0 north east, 1 north west, 2 south west, 3 south
+         * east
+         */
+        Bounds getQuadrant(int quadrant) {
+            return switch (quadrant) {
+                case 0 ->
+                    new Bounds(north, getMidLat(), east, getMidLon());
+                case 1 ->
+                    new Bounds(north, getMidLat(), getMidLon(), west);
+                case 2 ->
+                    new Bounds(getMidLat(), south, getMidLon(), west);
+                default ->
+                    new Bounds(getMidLat(), south, east, getMidLon());
+            };
+        }
+    }
+}
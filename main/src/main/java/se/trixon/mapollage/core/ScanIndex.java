@@ -0,0 +1,250 @@
+/*
+ * Copyright 2026 Patrik Karlström <patrik@trixon.se>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.mapollage.core;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.SerializedName;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.openide.modules.Places;
+
+/**
+ * Persistent per-directory listing of a source tree.
+ * <p>
+ * A directory whose modification time is unchanged since the last run is
+ * served from the index, its files are neither listed nor stat'ed. Like git
+ * with racy timestamps, a directory modified close to the start of the scan
+ * is not indexed, a change within the time resolution of the file system
+ * would otherwise go unnoticed.
+ *
+ * @author Patrik Karlström <patrik@trixon.se>
+ */
+public class ScanIndex {
+
+    private static final int FILE_FORMAT_VERSION = 1;
+    private static final Gson GSON = new Gson();
+    //Covers the two second resolution of FAT and the clock skew of network shares
+    private static final long RACY_MILLIS = 5000;
+
+    private transient File mFile;
+    @SerializedName("fileFormatVersion")
+    private int mFileFormatVersion;
+    @SerializedName("fullScanMillis")
+    private long mFullScanMillis;
+    private final transient AtomicInteger mHits = new AtomicInteger();
+    private final transient AtomicInteger mMismatches = new AtomicInteger();
+    private final transient AtomicInteger mMisses = new AtomicInteger();
+    private final transient ConcurrentHashMap<String, DirEntry> mNextDirs = new ConcurrentHashMap<>();
+    @SerializedName("dirs")
+    private ConcurrentHashMap<String, DirEntry> mDirs = new ConcurrentHashMap<>();
+    private transient long mScanStartMillis;
+    private transient boolean mVerify;
+
+    /**
+     * Opens the index of the source directory, an empty index is returned if
+     * there is none or if it can not be read.
+     *
+     * @param sourceDir the root of the scan
+     * @param verify list every directory and report entries that were out of
+     * date, this also rebuilds the index
+     * @return the index
+     */
+    public static ScanIndex open(File sourceDir, boolean verify) {
+        var dir = new File(Places.getUserDirectory(), "var/scan-index");
+        var file = new File(dir, UUID.nameUUIDFromBytes(sourceDir.getAbsolutePath().getBytes(StandardCharsets.UTF_8)) + ".json.gz");
+        ScanIndex scanIndex = null;
+
+        if (file.isFile()) {
+            try (var reader = new InputStreamReader(new GZIPInputStream(Files.newInputStream(file.toPath())), StandardCharsets.UTF_8)) {
+                scanIndex = GSON.fromJson(reader, ScanIndex.class);
+            } catch (IOException | JsonParseException ex) {
+                //nvm, rebuild
+            }
+        }
+
+        if (scanIndex == null || scanIndex.mFileFormatVersion != FILE_FORMAT_VERSION || scanIndex.mDirs == null) {
+            scanIndex = new ScanIndex();
+        }
+
+        scanIndex.mFile = file;
+        scanIndex.mScanStartMillis = System.currentTimeMillis();
+        scanIndex.mVerify = verify;
+
+        return scanIndex;
+    }
+
+    private ScanIndex() {
+    }
+
+    /**
+     * Returns the indexed listing of the directory if its modification time is
+     * unchanged.
+     *
+     * @param dir the directory
+     * @param lastModified the current modification time of the directory
+     * @return the listing, or null if the directory has to be listed
+     */
+    public DirEntry get(Path dir, long lastModified) {
+        var key = dir.toString();
+        var entry = mDirs.get(key);
+
+        if (entry == null || entry.mLastModified != lastModified || mVerify) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+
+        mHits.incrementAndGet();
+        mNextDirs.put(key, entry);
+
+        return entry;
+    }
+
+    public long getFullScanMillis() {
+        return mFullScanMillis;
+    }
+
+    public int getHits() {
+        return mHits.get();
+    }
+
+    public int getMismatches() {
+        return mMismatches.get();
+    }
+
+    public int getMisses() {
+        return mMisses.get();
+    }
+
+    /**
+     * Adds the listing of the directory, unless it was modified too close to
+     * the start of the scan to be trusted. Such a directory is listed again
+     * on the next run.
+     *
+     * @param dir the directory
+     * @param entry the listing
+     */
+    public void put(Path dir, DirEntry entry) {
+        var key = dir.toString();
+        if (mVerify) {
+            var previous = mDirs.get(key);
+            if (previous != null && previous.mLastModified == entry.mLastModified && !previous.hasSameContent(entry)) {
+                mMismatches.incrementAndGet();
+            }
+        }
+
+        if (entry.mLastModified < mScanStartMillis - RACY_MILLIS) {
+            mNextDirs.put(key, entry);
+        }
+    }
+
+    /**
+     * Replaces the stored index with the directories visited in this scan.
+     *
+     * @param scanMillis the duration of the scan
+     * @throws IOException
+     */
+    public void save(long scanMillis) throws IOException {
+        if (mHits.get() == 0) {
+            mFullScanMillis = scanMillis;
+        }
+
+        mDirs = mNextDirs;
+        mFileFormatVersion = FILE_FORMAT_VERSION;
+        FileUtils.forceMkdir(mFile.getParentFile());
+
+        var tmpFile = new File(mFile.getParentFile(), mFile.getName() + ".tmp");
+        try (var writer = new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(tmpFile.toPath())), StandardCharsets.UTF_8)) {
+            GSON.toJson(this, writer);
+        }
+
+        Files.move(tmpFile.toPath(), mFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static class DirEntry {
+
+        @SerializedName("dirs")
+        private final String[] mDirs;
+        @SerializedName("files")
+        private final String[] mFiles;
+        @SerializedName("modified")
+        private final long mLastModified;
+        @SerializedName("links")
+        private final String[] mLinks;
+
+        public DirEntry(long lastModified, String[] files, String[] dirs, String[] links) {
+            mLastModified = lastModified;
+            mFiles = files;
+            mDirs = dirs;
+            mLinks = links;
+        }
+
+        /**
+         * @return the names of the sub directories that are not links
+         */
+        public String[] getDirs() {
+            return mDirs;
+        }
+
+        /**
+         * @return the names of the regular files, links followed
+         */
+        public String[] getFiles() {
+            return mFiles;
+        }
+
+        public long getLastModified() {
+            return mLastModified;
+        }
+
+        /**
+         * @return the names of the links to directories
+         */
+        public String[] getLinks() {
+            return mLinks;
+        }
+
+        public boolean isEmpty() {
+            return mFiles.length == 0 && mDirs.length == 0 && mLinks.length == 0;
+        }
+
+        private boolean hasSameContent(DirEntry other) {
+            return Arrays.equals(sorted(mFiles), sorted(other.mFiles))
+                    && Arrays.equals(sorted(mDirs), sorted(other.mDirs))
+                    && Arrays.equals(sorted(mLinks), sorted(other.mLinks));
+        }
+
+        private String[] sorted(String[] names) {
+            var copy = names.clone();
+            Arrays.sort(copy);
+
+            return copy;
+        }
+    }
+}
@@ -21,6 +21,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Strings;
 import se.trixon.almond.util.BooleanHelper;
 import se.trixon.almond.util.Dict;
+import static se.trixon.mapollage.core.TaskBase.BUNDLE_UI;
 
 /**
  *
@@ -33,6 +34,8 @@ public class TaskDescription extends TaskBase {
 
     @SerializedName("altitude")
     private boolean mAltitude;
+    @SerializedName("balloon_template")
+    private boolean mBalloonTemplate;
     @SerializedName("bearing")
     private boolean mBearing;
     @SerializedName("coordinate")
@@ -136,6 +139,15 @@ public class TaskDescription extends TaskBase {
         return hasPhoto;
     }
 
+    /**
+     * @return true if the description should be written once, as the text of
+     * the balloon style, with the values in the extended data of each
+     * placemark. Only used in the static and custom modes.
+     */
+    public boolean isBalloonTemplate() {
+        return mBalloonTemplate;
+    }
+
     public boolean isDefaultTo() {
         return mDefaultTo;
     }
@@ -149,6 +161,10 @@ public class TaskDescription extends TaskBase {
         mAltitude = altitude;
     }
 
+    public void setBalloonTemplate(boolean balloonTemplate) {
+        mBalloonTemplate = balloonTemplate;
+    }
+
     public void setBearing(boolean bearing) {
         mBearing = bearing;
     }
@@ -216,6 +232,7 @@ public class TaskDescription extends TaskBase {
                 case CUSTOM -> {
                     var value = mCustomValue != null ? mCustomValue.replaceAll("\\n", "\\\\n") : "";
                     values.put(Dict.VALUE.toString(), value);
+                    values.put(BUNDLE_UI.getString("DescriptionTab.balloonTemplateCheckBox"), BooleanHelper.asYesNo(mBalloonTemplate));
                 }
 
                 case EXTERNAL -> {
@@ -236,6 +253,7 @@ public class TaskDescription extends TaskBase {
                     values.put(Dict.COORDINATE.toString(), BooleanHelper.asYesNo(mCoordinate));
                     values.put(Dict.ALTITUDE.toString(), BooleanHelper.asYesNo(mAltitude));
                     values.put(Dict.BEARING.toString(), BooleanHelper.asYesNo(mBearing));
+                    values.put(BUNDLE_UI.getString("DescriptionTab.balloonTemplateCheckBox"), BooleanHelper.asYesNo(mBalloonTemplate));
                 }
             }
         }
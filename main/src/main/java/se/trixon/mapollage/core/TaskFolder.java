@@ -19,6 +19,7 @@ package se.trixon.mapollage.core;
 import com.google.gson.annotations.SerializedName;
 import java.text.SimpleDateFormat;
 import java.util.LinkedHashMap;
+import se.trixon.almond.util.BooleanHelper;
 import se.trixon.almond.util.Dict;
 
 /**
@@ -35,10 +36,14 @@ public class TaskFolder extends TaskBase {
     private transient SimpleDateFormat mFolderDateFormat;
     @SerializedName("folders_by")
     private FolderBy mFoldersBy = FolderBy.DIR;
+    @SerializedName("max_file_size")
+    private int mMaxFileSize = 10;
     @SerializedName("regex")
     private String mRegex = "\\d{8}";
     @SerializedName("regex_default")
     private String mRegexDefault = "12345678";
+    @SerializedName("split_files")
+    private boolean mSplitFiles = false;
 
     public TaskFolder() {
     }
@@ -55,6 +60,13 @@ public class TaskFolder extends TaskBase {
         return mFoldersBy;
     }
 
+    /**
+     * @return the max size in MiB of a folder file
+     */
+    public int getMaxFileSize() {
+        return mMaxFileSize;
+    }
+
     public String getRegex() {
         return mRegex;
     }
@@ -68,6 +80,14 @@ public class TaskFolder extends TaskBase {
         return Dict.FOLDERS.toString();
     }
 
+    /**
+     * @return true if each top folder is written to files of its own, linked
+     * from the document
+     */
+    public boolean isSplitFiles() {
+        return mSplitFiles;
+    }
+
     @Override
     public boolean isValid() {
         boolean valid = true;
@@ -100,6 +120,10 @@ public class TaskFolder extends TaskBase {
         mFoldersBy = foldersBy;
     }
 
+    public void setMaxFileSize(int maxFileSize) {
+        mMaxFileSize = maxFileSize;
+    }
+
     public void setRegex(String regex) {
         mRegex = regex;
     }
@@ -108,6 +132,10 @@ public class TaskFolder extends TaskBase {
         mRegexDefault = regexDefault;
     }
 
+    public void setSplitFiles(boolean splitFiles) {
+        mSplitFiles = splitFiles;
+    }
+
     @Override
     protected TaskInfo getTaskInfo() {
         var taskInfo = new TaskInfo();
@@ -128,6 +156,10 @@ public class TaskFolder extends TaskBase {
         }
 
         values.put(BUNDLE_UI.getString("FoldersTab.folderByLabel"), foldersBy);
+        values.put(BUNDLE_UI.getString("FoldersTab.splitFilesCheckBox"), BooleanHelper.asYesNo(mSplitFiles));
+        if (mSplitFiles) {
+            values.put(BUNDLE_UI.getString("FoldersTab.maxFileSize"), String.valueOf(mMaxFileSize));
+        }
 
         taskInfo.setTitle(getTitle());
         taskInfo.setValues(values);
@@ -27,6 +27,8 @@ import se.trixon.almond.util.Dict;
  */
 public class TaskPhoto extends TaskBase {
 
+    @SerializedName("analyze_threads")
+    private int mAnalyzeThreads = 0;
     @SerializedName("base_url_value")
     private String mBaseUrlValue = "https://www.domain.com/img/";
     @SerializedName("force_lower_case_extension")
@@ -45,12 +47,21 @@ public class TaskPhoto extends TaskBase {
     private int mThumbnailBorderSize = 3;
     @SerializedName("thumbnail_size")
     private int mThumbnailSize = 1000;
+    @SerializedName("thumbnail_threads")
+    private int mThumbnailThreads = 0;
     @SerializedName("width_limit")
     private int mWidthLimit = 1000;
 
     public TaskPhoto() {
     }
 
+    /**
+     * @return the number of threads reading the photos, 0 for one per core
+     */
+    public int getAnalyzeThreads() {
+        return mAnalyzeThreads;
+    }
+
     public String getBaseUrlValue() {
         return mBaseUrlValue;
     }
@@ -75,6 +86,17 @@ public class TaskPhoto extends TaskBase {
         return mThumbnailSize;
     }
 
+    public ThumbnailSpec getThumbnailSpec() {
+        return new ThumbnailSpec(mThumbnailSize, mThumbnailBorderSize, mThumbnailBorderColor);
+    }
+
+    /**
+     * @return the number of thumbnail rendering threads, 0 for one per core
+     */
+    public int getThumbnailThreads() {
+        return mThumbnailThreads;
+    }
+
     @Override
     public String getTitle() {
         return Dict.PHOTO.toString();
@@ -101,6 +123,10 @@ public class TaskPhoto extends TaskBase {
         return true;
     }
 
+    public void setAnalyzeThreads(int analyzeThreads) {
+        mAnalyzeThreads = analyzeThreads;
+    }
+
     public void setBaseUrlValue(String baseUrlValue) {
         mBaseUrlValue = baseUrlValue;
     }
@@ -137,6 +163,10 @@ public class TaskPhoto extends TaskBase {
         mThumbnailSize = thumbnailSize;
     }
 
+    public void setThumbnailThreads(int thumbnailThreads) {
+        mThumbnailThreads = thumbnailThreads;
+    }
+
     public void setWidthLimit(int maxWidthValue) {
         mWidthLimit = maxWidthValue;
     }
@@ -171,6 +201,8 @@ public class TaskPhoto extends TaskBase {
         values.put(BUNDLE_UI.getString("PhotoTab.thumbnailSize"), String.valueOf(photo.getThumbnailSize()));
         values.put(BUNDLE_UI.getString("PhotoTab.thumbnailBorderSize"), String.valueOf(photo.getThumbnailBorderSize()));
         values.put(BUNDLE_UI.getString("PhotoTab.thumbnailBorderColor"), "#" + photo.getThumbnailBorderColor());
+        values.put(BUNDLE_UI.getString("PhotoTab.thumbnailThreads"), String.valueOf(photo.getThumbnailThreads()));
+        values.put(BUNDLE_UI.getString("PhotoTab.analyzeThreads"), String.valueOf(photo.getAnalyzeThreads()));
 
         taskInfo.setTitle(getTitle());
         taskInfo.setValues(values);
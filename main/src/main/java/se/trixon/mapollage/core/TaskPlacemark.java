@@ -31,12 +31,26 @@ public class TaskPlacemark extends TaskBase {
     private static final String COORDINATE = "coordinate";
     private static final String PLACEMARK_NAME = "placemark-name";
 
+    @SerializedName("cluster")
+    private boolean mCluster = false;
+    @SerializedName("cluster_level")
+    private int mClusterLevel = 14;
     private transient String[] mCoordinate;
     private transient SimpleDateFormat mDateFormat;
     @SerializedName("date_pattern")
     private String mDatePattern = "yyyy-MM-dd HH.mm";
+    @SerializedName("icon_atlas")
+    private boolean mIconAtlas = false;
+    @SerializedName("icon_size")
+    private int mIconSize = 128;
     @SerializedName("name_by")
     private NameBy mNameBy = NameBy.NONE;
+    @SerializedName("region_max_depth")
+    private int mRegionMaxDepth = 8;
+    @SerializedName("region_tile_capacity")
+    private int mRegionTileCapacity = 500;
+    @SerializedName("region_tiles")
+    private boolean mRegionTiles = false;
     @SerializedName("scale")
     private Double mScale = 3.0;
     @SerializedName("symbol_as")
@@ -57,6 +71,14 @@ public class TaskPlacemark extends TaskBase {
 //
 //        mCoordinate = commandLine.getOptionValues(COORDINATE);
 //    }
+    /**
+     * @return the finest level of the cluster grid, its cells are 360/2^level
+     * degrees wide
+     */
+    public int getClusterLevel() {
+        return mClusterLevel;
+    }
+
     public String[] getCoordinate() {
         return mCoordinate;
     }
@@ -69,10 +91,32 @@ public class TaskPlacemark extends TaskBase {
         return mDatePattern;
     }
 
+    /**
+     * @return the size of the icon rendition used as symbol
+     */
+    public int getIconSize() {
+        return mIconSize;
+    }
+
     public NameBy getNameBy() {
         return mNameBy;
     }
 
+    /**
+     * @return the max depth of the region tiles, the root tile is at depth 0
+     */
+    public int getRegionMaxDepth() {
+        return mRegionMaxDepth;
+    }
+
+    /**
+     * @return the max number of placemarks of a region tile above the max
+     * depth
+     */
+    public int getRegionTileCapacity() {
+        return mRegionTileCapacity;
+    }
+
     public Double getScale() {
         return mScale;
     }
@@ -90,6 +134,29 @@ public class TaskPlacemark extends TaskBase {
         return mZoom;
     }
 
+    /**
+     * @return true if nearby placemarks are clustered when zoomed out
+     */
+    public boolean isCluster() {
+        return mCluster;
+    }
+
+    /**
+     * @return true if the icons are packed into atlases instead of one file
+     * each
+     */
+    public boolean isIconAtlas() {
+        return mIconAtlas;
+    }
+
+    /**
+     * @return true if the placemarks are written as a quadtree of region
+     * tiles instead of folders
+     */
+    public boolean isRegionTiles() {
+        return mRegionTiles;
+    }
+
     public boolean isSymbolAsPhoto() {
         return mSymbolAs == SymbolAs.PHOTO;
     }
@@ -111,6 +178,14 @@ public class TaskPlacemark extends TaskBase {
         return true;
     }
 
+    public void setCluster(boolean cluster) {
+        mCluster = cluster;
+    }
+
+    public void setClusterLevel(int clusterLevel) {
+        mClusterLevel = clusterLevel;
+    }
+
     public void setCoordinate(String[] coordinate) {
         mCoordinate = coordinate;
     }
@@ -123,10 +198,30 @@ public class TaskPlacemark extends TaskBase {
         mDatePattern = datePattern;
     }
 
+    public void setIconAtlas(boolean iconAtlas) {
+        mIconAtlas = iconAtlas;
+    }
+
+    public void setIconSize(int iconSize) {
+        mIconSize = iconSize;
+    }
+
     public void setNameBy(NameBy nameBy) {
         mNameBy = nameBy;
     }
 
+    public void setRegionMaxDepth(int regionMaxDepth) {
+        mRegionMaxDepth = regionMaxDepth;
+    }
+
+    public void setRegionTileCapacity(int regionTileCapacity) {
+        mRegionTileCapacity = regionTileCapacity;
+    }
+
+    public void setRegionTiles(boolean regionTiles) {
+        mRegionTiles = regionTiles;
+    }
+
     public void setScale(Double scale) {
         mScale = scale;
     }
@@ -160,9 +255,20 @@ public class TaskPlacemark extends TaskBase {
 
         values.put(BUNDLE_UI.getString("PlacemarkTab.nameByLabel"), nameBy);
         values.put(Dict.SYMBOL.toString(), mSymbolAs == SymbolAs.PHOTO ? Dict.PHOTO.toString() : Dict.PIN.toString());
+        values.put(BUNDLE_UI.getString("PlacemarkTab.iconSize"), String.valueOf(mIconSize));
+        values.put(BUNDLE_UI.getString("PlacemarkTab.iconAtlasCheckBox"), BooleanHelper.asYesNo(mIconAtlas));
         values.put(Dict.SCALE.toString(), String.valueOf(mScale));
         values.put(Dict.ZOOM.toString(), String.valueOf(mZoom));
         values.put(BUNDLE_UI.getString("PlacemarkTab.timestampCheckBox"), BooleanHelper.asYesNo(mTimestamp));
+        values.put(BUNDLE_UI.getString("PlacemarkTab.clusterCheckBox"), BooleanHelper.asYesNo(mCluster));
+        if (mCluster) {
+            values.put(BUNDLE_UI.getString("PlacemarkTab.clusterLevel"), String.valueOf(mClusterLevel));
+        }
+        values.put(BUNDLE_UI.getString("PlacemarkTab.regionTilesCheckBox"), BooleanHelper.asYesNo(mRegionTiles));
+        if (mRegionTiles) {
+            values.put(BUNDLE_UI.getString("PlacemarkTab.regionTileCapacity"), String.valueOf(mRegionTileCapacity));
+            values.put(BUNDLE_UI.getString("PlacemarkTab.regionMaxDepth"), String.valueOf(mRegionMaxDepth));
+        }
 
         taskInfo.setTitle(getTitle());
         taskInfo.setValues(values);
@@ -17,10 +17,8 @@ package se.trixon.mapollage.core;
 
 import com.google.gson.annotations.SerializedName;
 import java.io.File;
-import java.nio.file.FileSystems;
-import java.nio.file.PathMatcher;
 import java.util.LinkedHashMap;
-import java.util.Locale;
+import java.util.regex.Pattern;
 import org.apache.commons.lang3.SystemUtils;
 import se.trixon.almond.util.BooleanHelper;
 import se.trixon.almond.util.Dict;
@@ -47,9 +45,15 @@ public class TaskSource extends TaskBase {
     private boolean mFollowLinks = true;
     @SerializedName("include_null_coordinates")
     private boolean mIncludeNullCoordinate = false;
-    private transient PathMatcher mPathMatcher;
+    private transient Pattern mFileNamePattern;
     @SerializedName("recursive")
     private boolean mRecursive = true;
+    @SerializedName("scan_index")
+    private boolean mScanIndex = false;
+    @SerializedName("scan_index_verify")
+    private boolean mScanIndexVerify = false;
+    @SerializedName("streaming")
+    private boolean mStreaming = false;
 
     public TaskSource() {
     }
@@ -74,8 +78,8 @@ public class TaskSource extends TaskBase {
         return mFilePattern;
     }
 
-    public PathMatcher getPathMatcher() {
-        return mPathMatcher;
+    public Pattern getFileNamePattern() {
+        return mFileNamePattern;
     }
 
     @Override
@@ -95,14 +99,32 @@ public class TaskSource extends TaskBase {
         return mRecursive;
     }
 
+    public boolean isScanIndex() {
+        return mScanIndex;
+    }
+
+    public boolean isScanIndexVerify() {
+        return mScanIndexVerify;
+    }
+
+    public boolean isStreaming() {
+        return mStreaming;
+    }
+
     @Override
     public boolean isValid() {
         try {
-            mPathMatcher = FileSystems.getDefault().getPathMatcher("glob:" + mFilePattern.toLowerCase(Locale.ROOT));
+            mFileNamePattern = Pattern.compile(ExcludeMatcher.globToRegex(mFilePattern), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
         } catch (Exception e) {
             addValidationError("invalid file pattern: " + mFilePattern);
         }
 
+        try {
+            ExcludeMatcher.compile(mExcludePattern, true);
+        } catch (Exception e) {
+            addValidationError("invalid exclude pattern: " + mExcludePattern);
+        }
+
         return true;
     }
 
@@ -138,6 +160,18 @@ public class TaskSource extends TaskBase {
         mRecursive = recursive;
     }
 
+    public void setScanIndex(boolean scanIndex) {
+        mScanIndex = scanIndex;
+    }
+
+    public void setScanIndexVerify(boolean scanIndexVerify) {
+        mScanIndexVerify = scanIndexVerify;
+    }
+
+    public void setStreaming(boolean streaming) {
+        mStreaming = streaming;
+    }
+
     @Override
     protected TaskInfo getTaskInfo() {
         var taskInfo = new TaskInfo();
@@ -147,6 +181,11 @@ public class TaskSource extends TaskBase {
         values.put(BUNDLE_UI.getString("SourceTab.excludeLabel"), mExcludePattern);
         values.put(BUNDLE_UI.getString("SourceTab.recursive"), BooleanHelper.asYesNo(mRecursive));
         values.put(Dict.FOLLOW_LINKS.toString(), BooleanHelper.asYesNo(mFollowLinks));
+        values.put(BUNDLE_UI.getString("SourceTab.streaming"), BooleanHelper.asYesNo(mStreaming));
+        values.put(BUNDLE_UI.getString("SourceTab.scanIndex"), BooleanHelper.asYesNo(mScanIndex));
+        if (mScanIndex) {
+            values.put(BUNDLE_UI.getString("SourceTab.scanIndexVerify"), BooleanHelper.asYesNo(mScanIndexVerify));
+        }
         values.put(BUNDLE_UI.getString("SourceTab.includeNullCoordinateCheckBox"), BooleanHelper.asYesNo(mIncludeNullCoordinate));
         if (mIncludeNullCoordinate) {
             values.put(Dict.LATITUDE.toString(), String.valueOf(mDefaultLat));
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2026 Patrik Karlström <patrik@trixon.se>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.mapollage.core;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * The buffers a thumbnail worker reuses from one thumbnail to the next, one
+ * set per thread.
+ * <p>
+ * The canvas only grows, each thumbnail is drawn into its top left corner
+ * and encoded by the same JPEG writer into the same output buffer.
+ *
+ * @author Patrik Karlström <patrik@trixon.se>
+ */
+public class ThumbnailCanvas {
+
+    private static final ThreadLocal<ThumbnailCanvas> CANVAS = ThreadLocal.withInitial(ThumbnailCanvas::new);
+
+    private Color mBorderColor;
+    private String mBorderColorString;
+    private byte[] mBytes = new byte[0];
+    private BufferedImage mImage;
+    private final ByteArrayOutputStream mOutputStream = new ByteArrayOutputStream(256 * 1024);
+    private final ImageWriter mWriter;
+    private final ImageWriteParam mWriteParam;
+
+    public static ThumbnailCanvas get() {
+        return CANVAS.get();
+    }
+
+    private ThumbnailCanvas() {
+        mWriter = ImageIO.getImageWritersByFormatName("jpg").next();
+        mWriteParam = mWriter.getDefaultWriteParam();
+    }
+
+    /**
+     * @param hex the color as RRGGBB
+     * @return the color, decoded only when it differs from the last one
+     */
+    public Color getBorderColor(String hex) {
+        if (!hex.equals(mBorderColorString)) {
+            mBorderColor = Color.decode("#" + hex);
+            mBorderColorString = hex;
+        }
+
+        return mBorderColor;
+    }
+
+    /**
+     * @param length the minimum length
+     * @return a byte array of at least the given length, its content
+     * undefined
+     */
+    public byte[] getBytes(int length) {
+        if (mBytes.length < length) {
+            mBytes = new byte[length];
+        }
+
+        return mBytes;
+    }
+
+    /**
+     * @param width the width
+     * @param height the height
+     * @return a view of the canvas with the given size, its content undefined
+     */
+    public BufferedImage getImage(int width, int height) {
+        if (mImage == null || mImage.getWidth() < width || mImage.getHeight() < height) {
+            int canvasWidth = Math.max(width, mImage == null ? 0 : mImage.getWidth());
+            int canvasHeight = Math.max(height, mImage == null ? 0 : mImage.getHeight());
+            mImage = new BufferedImage(canvasWidth, canvasHeight, BufferedImage.TYPE_3BYTE_BGR);
+        }
+
+        return mImage.getSubimage(0, 0, width, height);
+    }
+
+    /**
+     * Encodes the image as JPEG and writes it to dest.
+     *
+     * @param image the image
+     * @param dest the file
+     * @throws IOException
+     */
+    public void write(BufferedImage image, File dest) throws IOException {
+        mOutputStream.reset();
+        try (var imageOutputStream = new MemoryCacheImageOutputStream(mOutputStream)) {
+            mWriter.setOutput(imageOutputStream);
+            mWriter.write(null, new IIOImage(image, null, null), mWriteParam);
+        } finally {
+            mWriter.reset();
+        }
+
+        try (var outputStream = Files.newOutputStream(dest.toPath())) {
+            mOutputStream.writeTo(outputStream);
+        }
+    }
+}
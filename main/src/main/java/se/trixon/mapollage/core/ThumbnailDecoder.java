@@ -0,0 +1,182 @@
+/*
+ * Copyright 2026 Patrik Karlström <patrik@trixon.se>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.mapollage.core;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * Decodes a photo at roughly the size of its thumbnail.
+ * <p>
+ * The embedded EXIF preview is used when it is large enough, otherwise the
+ * image is decoded with source subsampling so that the full resolution raster
+ * is never allocated.
+ * <p>
+ * Images above {@link #HUGE_PIXELS} that are stored in strips or tiles are
+ * decoded band by band, so the peak memory stays bounded whatever their size.
+ * Other formats are decoded in one pass, their readers only keep the
+ * subsampled rows, and a reader would start over from the first row for each
+ * band.
+ *
+ * @author Patrik Karlström <patrik@trixon.se>
+ */
+public class ThumbnailDecoder {
+
+    public static final long HUGE_PIXELS = 64_000_000L;
+    private static final long BAND_PIXELS = 16_000_000L;
+    private static final double MAX_ASPECT_DEVIATION = 0.02;
+
+    /**
+     * Decodes the image, not rotated, with its longest side at least maxSize
+     * or its full size if smaller.
+     *
+     * @param file the file
+     * @param maxSize the longest side of the thumbnail
+     * @param entry the cached metadata of the file
+     * @return the image, or null if the file could not be decoded this way
+     * @throws IOException
+     */
+    public static BufferedImage decode(File file, int maxSize, MetadataCache.Entry entry) throws IOException {
+        if (entry.mPreviewLength > 0 && entry.mWidth > 0 && entry.mHeight > 0) {
+            var preview = readPreview(file, entry.mPreviewOffset, entry.mPreviewLength);
+            if (preview != null
+                    && Math.max(preview.getWidth(), preview.getHeight()) >= maxSize
+                    && hasSameAspect(preview, entry.mWidth, entry.mHeight)) {
+                return preview;
+            }
+        }
+
+        try (var stream = ImageIO.createImageInputStream(file)) {
+            if (stream == null) {
+                return null;
+            }
+
+            var readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                return null;
+            }
+
+            var reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                int subsampling = Math.max(1, Math.max(width, height) / maxSize);
+
+                if (isHuge(width, height) && reader.getTileHeight(0) < height) {
+                    return readBands(reader, width, height, subsampling);
+                }
+
+                var param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+
+                return reader.read(0, param);
+            } catch (IOException | RuntimeException ex) {
+                //Unsupported color space and the like, let the caller fall back
+                return null;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Estimates the heap needed to decode the image and render its thumbnail.
+     *
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param maxSize the longest side of the thumbnail
+     * @return the estimate in bytes
+     */
+    public static long estimateMemory(int width, int height, int maxSize) {
+        int subsampling = Math.max(1, Math.max(width, height) / maxSize);
+        long decodedBytes = (long) ((width + subsampling - 1) / subsampling) * ((height + subsampling - 1) / subsampling) * 4;
+        //The reader works on rows of blocks, the thumbnail is halved down from the decoded image
+        long readerBytes = (long) width * 3 * 16;
+        long thumbnailBytes = (long) maxSize * maxSize * 3;
+
+        return decodedBytes * 2 + readerBytes + thumbnailBytes;
+    }
+
+    /**
+     * @param width the width
+     * @param height the height
+     * @return true if decoding the full resolution raster could exhaust the
+     * heap
+     */
+    public static boolean isHuge(int width, int height) {
+        return (long) width * height > HUGE_PIXELS;
+    }
+
+    private static boolean hasSameAspect(BufferedImage preview, int width, int height) {
+        double aspect = (double) width / height;
+        double previewAspect = (double) preview.getWidth() / preview.getHeight();
+
+        //Previews of non 4:3 photos are often letterboxed
+        return Math.abs(previewAspect - aspect) <= aspect * MAX_ASPECT_DEVIATION;
+    }
+
+    private static BufferedImage readBands(ImageReader reader, int width, int height, int subsampling) throws IOException {
+        //Bands start on a multiple of the subsampling to keep the sampling grid
+        int bandHeight = (int) Math.max(subsampling, BAND_PIXELS / width / subsampling * subsampling);
+        var image = new BufferedImage((width + subsampling - 1) / subsampling, (height + subsampling - 1) / subsampling, BufferedImage.TYPE_INT_RGB);
+        var g2 = image.createGraphics();
+
+        try {
+            var param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+
+            for (int y = 0; y < height; y += bandHeight) {
+                param.setSourceRegion(new Rectangle(0, y, width, Math.min(bandHeight, height - y)));
+                g2.drawImage(reader.read(0, param), 0, y / subsampling, null);
+            }
+        } finally {
+            g2.dispose();
+        }
+
+        return image;
+    }
+
+    private static BufferedImage readPreview(File file, long offset, int length) {
+        try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            var buffer = ByteBuffer.wrap(ThumbnailCanvas.get().getBytes(length), 0, length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    return null;
+                }
+            }
+
+            //Decoded from memory, no need for a cache file
+            try (var stream = new MemoryCacheImageInputStream(new ByteArrayInputStream(buffer.array(), 0, length))) {
+                return ImageIO.read(stream);
+            }
+        } catch (IOException | RuntimeException ex) {
+            return null;
+        }
+    }
+
+    private ThumbnailDecoder() {
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2026 Patrik Karlström <patrik@trixon.se>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.mapollage.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Properties;
+
+/**
+ * Records what each thumbnail in a thumbnail directory was rendered from.
+ * <p>
+ * The file names of the thumbnails start with the content ids of their source
+ * photos. Each entry holds the fingerprint of the render settings together
+ * with the size and modification time of the thumbnail, so a thumbnail is
+ * verified by a stat and re-rendered only if the settings changed or the file
+ * was touched. Files outside the directory are never current and never
+ * recorded.
+ *
+ * @author Patrik Karlström <patrik@trixon.se>
+ */
+public class ThumbnailManifest {
+
+    public static final String FILE_NAME = "manifest.properties";
+
+    private final File mDir;
+    private boolean mDirty;
+    private final File mFile;
+    private final Properties mProperties = new Properties();
+
+    /**
+     * Loads the manifest of the directory.
+     *
+     * @param dir the thumbnail directory
+     */
+    public ThumbnailManifest(File dir) {
+        mDir = dir;
+        mFile = new File(dir, FILE_NAME);
+
+        if (mFile.isFile()) {
+            try (InputStream inputStream = Files.newInputStream(mFile.toPath())) {
+                mProperties.load(inputStream);
+            } catch (IOException | IllegalArgumentException ex) {
+                //nvm, everything will be re-rendered
+                mProperties.clear();
+            }
+        }
+    }
+
+    /**
+     * @param thumbnail the thumbnail file
+     * @param fingerprint the fingerprint of the current render settings
+     * @return true if the thumbnail exists and was rendered with the current
+     * settings
+     */
+    public synchronized boolean isCurrent(File thumbnail, String fingerprint) {
+        var value = mProperties.getProperty(thumbnail.getName());
+        if (value == null || !mDir.equals(thumbnail.getParentFile())) {
+            return false;
+        }
+
+        try {
+            var attrs = Files.readAttributes(thumbnail.toPath(), BasicFileAttributes.class);
+            return value.equals(getValue(fingerprint, attrs));
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Records a rendered thumbnail.
+     *
+     * @param thumbnail the thumbnail file
+     * @param fingerprint the fingerprint of the render settings
+     * @throws IOException
+     */
+    public synchronized void put(File thumbnail, String fingerprint) throws IOException {
+        if (!mDir.equals(thumbnail.getParentFile())) {
+            return;
+        }
+
+        var attrs = Files.readAttributes(thumbnail.toPath(), BasicFileAttributes.class);
+        mProperties.setProperty(thumbnail.getName(), getValue(fingerprint, attrs));
+        mDirty = true;
+    }
+
+    /**
+     * Writes the manifest if it has been modified.
+     *
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+        if (!mDirty) {
+            return;
+        }
+
+        var tmpFile = new File(mFile.getParentFile(), mFile.getName() + ".tmp");
+        try (OutputStream outputStream = Files.newOutputStream(tmpFile.toPath())) {
+            mProperties.store(outputStream, "Mapollage thumbnails: fingerprint size modified");
+        }
+
+        Files.move(tmpFile.toPath(), mFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        mDirty = false;
+    }
+
+    private String getValue(String fingerprint, BasicFileAttributes attrs) {
+        return "%s %d %d".formatted(fingerprint, attrs.size(), attrs.lastModifiedTime().toMillis());
+    }
+}
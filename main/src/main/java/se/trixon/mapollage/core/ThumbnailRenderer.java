@@ -0,0 +1,185 @@
+/*
+ * Copyright 2026 Patrik Karlström <patrik@trixon.se>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.mapollage.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Renders thumbnails on a pool of its own, the document generation only
+ * queues them and never waits.
+ *
+ * @author Patrik Karlström <patrik@trixon.se>
+ */
+public class ThumbnailRenderer {
+
+    private final ThreadPoolExecutor mExecutor;
+    private final ConcurrentLinkedQueue<File> mFailedFiles = new ConcurrentLinkedQueue<>();
+    private final ThumbnailManifest mManifest;
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+    private final MemoryGovernor mMemoryGovernor = new MemoryGovernor();
+    private final LongAdder mNumOfRendered = new LongAdder();
+    private Consumer<File> mRenditionListener;
+    private final long mStartNanos = System.nanoTime();
+    private long mStopNanos;
+    private final Set<File> mSubmitted = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param numOfThreads the number of threads, 0 for one per core
+     * @param manifest the manifest of the thumbnail directory
+     */
+    public ThumbnailRenderer(int numOfThreads, ThumbnailManifest manifest) {
+        mManifest = manifest;
+        if (numOfThreads < 1) {
+            numOfThreads = Runtime.getRuntime().availableProcessors();
+        }
+
+        var threadNumber = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(numOfThreads, numOfThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+            var thread = new Thread(r, "Thumbnail-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Waits for all queued thumbnails to be rendered.
+     *
+     * @return the source files whose thumbnails could not be rendered
+     * @throws InterruptedException
+     */
+    public List<File> awaitCompletion() throws InterruptedException {
+        mExecutor.shutdown();
+        try {
+            mExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } finally {
+            mStopNanos = System.nanoTime();
+        }
+
+        return new ArrayList<>(mFailedFiles);
+    }
+
+    public void cancel() {
+        mExecutor.shutdownNow();
+    }
+
+    public MemoryGovernor getMemoryGovernor() {
+        return mMemoryGovernor;
+    }
+
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    public long getNumOfRendered() {
+        return mNumOfRendered.sum();
+    }
+
+    public int getQueueDepth() {
+        return mExecutor.getQueue().size();
+    }
+
+    /**
+     * @return rendered thumbnails per second, from creation until completion
+     */
+    public double getThroughput() {
+        long stopNanos = mStopNanos == 0 ? System.nanoTime() : mStopNanos;
+        double seconds = (stopNanos - mStartNanos) / 1E9;
+
+        return seconds > 0 ? mNumOfRendered.sum() / seconds : 0;
+    }
+
+    /**
+     * Sets a listener for the rendition files that are current, rendered now
+     * or in an earlier run. Called from the renderer threads.
+     *
+     * @param renditionListener the listener, or null
+     */
+    public void setRenditionListener(Consumer<File> renditionListener) {
+        mRenditionListener = renditionListener;
+    }
+
+    /**
+     * Queues the thumbnail renditions of the photo.
+     *
+     * @param photoInfo the photo
+     * @param file the source file, reported if rendering fails
+     * @param renditions the renditions
+     */
+    public void submit(PhotoInfo photoInfo, File file, List<Rendition> renditions) {
+        if (renditions.isEmpty() || !mSubmitted.add(renditions.get(0).dest())) {
+            //Same content, already queued
+            return;
+        }
+
+        mExecutor.execute(() -> {
+            try {
+                var staleRenditions = new ArrayList<Rendition>();
+                for (var rendition : renditions) {
+                    if (!mManifest.isCurrent(rendition.dest(), rendition.spec().getFingerprint())) {
+                        //Unknown, or rendered with other settings
+                        Files.deleteIfExists(rendition.dest().toPath());
+                        staleRenditions.add(rendition);
+                    }
+                }
+
+                if (!staleRenditions.isEmpty()) {
+                    if (photoInfo.createThumbnails(staleRenditions, mMemoryGovernor)) {
+                        mNumOfRendered.increment();
+                    }
+
+                    for (var rendition : staleRenditions) {
+                        mManifest.put(rendition.dest(), rendition.spec().getFingerprint());
+                    }
+                }
+
+                if (mRenditionListener != null) {
+                    for (var rendition : renditions) {
+                        if (rendition.dest().isFile()) {
+                            mRenditionListener.accept(rendition.dest());
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException ex) {
+                mFailedFiles.add(file);
+            } catch (InterruptedException ex) {
+                //Cancelled
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        mMaxQueueDepth.accumulateAndGet(mExecutor.getQueue().size(), Math::max);
+    }
+
+    /**
+     * A thumbnail file and the settings it is rendered with.
+     */
+    public record Rendition(File dest, ThumbnailSpec spec) {
+
+    }
+}
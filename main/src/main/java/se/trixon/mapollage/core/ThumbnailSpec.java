@@ -0,0 +1,59 @@
+/*
+ * Copyright 2026 Patrik Karlström <patrik@trixon.se>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.mapollage.core;
+
+import java.awt.Dimension;
+import java.util.Locale;
+
+/**
+ * The settings a thumbnail rendition is rendered with.
+ *
+ * @param size the longest side, including the border
+ * @param borderSize the border size
+ * @param borderColor the border color as RRGGBB
+ *
+ * @author Patrik Karlström <patrik@trixon.se>
+ */
+public record ThumbnailSpec(int size, int borderSize, String borderColor) {
+
+    /**
+     * @param width the width of the photo
+     * @param height the height of the photo
+     * @param quarterTurn true if the photo is rotated by 90 degrees
+     * @return the size of the rendered thumbnail, border included
+     */
+    public Dimension getDimension(int width, int height, boolean quarterTurn) {
+        double scale = Math.min(1.0, (double) getInnerSize() / Math.max(width, height));
+        int scaledWidth = Math.max(1, (int) Math.round(width * scale)) + borderSize * 2;
+        int scaledHeight = Math.max(1, (int) Math.round(height * scale)) + borderSize * 2;
+
+        return quarterTurn ? new Dimension(scaledHeight, scaledWidth) : new Dimension(scaledWidth, scaledHeight);
+    }
+
+    /**
+     * @return a string that changes whenever the rendered thumbnail would
+     */
+    public String getFingerprint() {
+        return "%d_%d_%s".formatted(size, borderSize, borderColor.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @return the longest side of the photo inside the border
+     */
+    public int getInnerSize() {
+        return Math.max(1, size - borderSize * 2);
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2026 Patrik Karlström <patrik@trixon.se>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.mapollage.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.commons.lang3.Strings;
+import org.openide.modules.Places;
+import org.openide.util.NbPreferences;
+
+/**
+ * Content addressed thumbnail store shared by all tasks.
+ * <p>
+ * Thumbnails are keyed by the content id of the photo and the thumbnail
+ * settings, rendered once and then hard linked, or copied, into the thumbnail
+ * directory of each album. The least recently used thumbnails are evicted when
+ * the store grows beyond its disk budget.
+ *
+ * @author Patrik Karlström <patrik@trixon.se>
+ */
+public class ThumbnailStore {
+
+    public static final String KEY_MAX_MEGABYTES = "thumbnailStore.maxMegabytes";
+    public static final int DEFAULT_MAX_MEGABYTES = 1024;
+    private static final int NUM_OF_LOCKS = 64;
+    private static final double TRIM_RATIO = 0.9;
+
+    private final File mDir;
+    private final LongAdder mHits = new LongAdder();
+    private final ReentrantLock[] mLocks = new ReentrantLock[NUM_OF_LOCKS];
+    private final long mMaxBytes;
+
+    public static ThumbnailStore getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    private ThumbnailStore() {
+        mDir = new File(Places.getUserDirectory(), "var/thumbnails");
+        mMaxBytes = NbPreferences.forModule(ThumbnailStore.class).getInt(KEY_MAX_MEGABYTES, DEFAULT_MAX_MEGABYTES) * 1024L * 1024L;
+
+        for (int i = 0; i < NUM_OF_LOCKS; i++) {
+            mLocks[i] = new ReentrantLock();
+        }
+    }
+
+    public long getHits() {
+        return mHits.sum();
+    }
+
+    /**
+     * Creates the store key of a thumbnail.
+     *
+     * @param contentId the content id of the photo
+     * @param spec the thumbnail settings
+     * @return the key
+     */
+    public String getKey(String contentId, ThumbnailSpec spec) {
+        return contentId + "_" + spec.getFingerprint();
+    }
+
+    /**
+     * @return false if the disk budget is set to 0
+     */
+    public boolean isEnabled() {
+        return mMaxBytes > 0;
+    }
+
+    /**
+     * Puts the thumbnail in dest if it is in the store.
+     *
+     * @param key the key
+     * @param dest the thumbnail file of the album
+     * @return false if the thumbnail is not in the store
+     * @throws IOException
+     */
+    public boolean link(String key, File dest) throws IOException {
+        var storePath = getPath(key);
+        var lock = getLock(key);
+
+        lock.lock();
+        try {
+            if (!Files.isRegularFile(storePath)) {
+                return false;
+            }
+
+            mHits.increment();
+            touch(storePath);
+        } finally {
+            lock.unlock();
+        }
+
+        link(storePath, dest);
+
+        return true;
+    }
+
+    /**
+     * Puts the thumbnail in dest, rendering it into the store first if it is
+     * not there.
+     *
+     * @param key the key
+     * @param dest the thumbnail file of the album
+     * @param writer renders the thumbnail to the given file
+     * @return true if the thumbnail was rendered
+     * @throws IOException
+     */
+    public boolean provide(String key, File dest, Writer writer) throws IOException {
+        var storePath = getPath(key);
+        boolean rendered = false;
+        var lock = getLock(key);
+
+        lock.lock();
+        try {
+            if (Files.isRegularFile(storePath)) {
+                mHits.increment();
+                touch(storePath);
+            } else {
+                Files.createDirectories(storePath.getParent());
+                //Other processes only ever see complete files
+                var tmpPath = Files.createTempFile(storePath.getParent(), key, ".tmp");
+                try {
+                    writer.write(tmpPath.toFile());
+                    Files.move(tmpPath, storePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    rendered = true;
+                } finally {
+                    Files.deleteIfExists(tmpPath);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        link(storePath, dest);
+
+        return rendered;
+    }
+
+    /**
+     * Evicts the least recently used thumbnails if the store exceeds its disk
+     * budget.
+     *
+     * @throws IOException
+     */
+    public void trim() throws IOException {
+        if (!isEnabled() || !mDir.isDirectory()) {
+            return;
+        }
+
+        var entries = new ArrayList<StoredFile>();
+        long totalSize = 0;
+        try (var stream = Files.walk(mDir.toPath(), 2)) {
+            for (var path : (Iterable<Path>) stream::iterator) {
+                var attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                if (attrs.isRegularFile()) {
+                    entries.add(new StoredFile(path, attrs.size(), attrs.lastAccessTime().toMillis()));
+                    totalSize += attrs.size();
+                }
+            }
+        }
+
+        if (totalSize <= mMaxBytes) {
+            return;
+        }
+
+        entries.sort(Comparator.comparingLong(StoredFile::lastAccess));
+        long targetSize = (long) (mMaxBytes * TRIM_RATIO);
+        for (var entry : entries) {
+            if (totalSize <= targetSize) {
+                break;
+            }
+
+            var key = Strings.CS.removeEnd(entry.path().getFileName().toString(), ".jpg");
+            var lock = getLock(key);
+            lock.lock();
+            try {
+                if (Files.deleteIfExists(entry.path())) {
+                    totalSize -= entry.size();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private ReentrantLock getLock(String key) {
+        return mLocks[Math.floorMod(key.hashCode(), NUM_OF_LOCKS)];
+    }
+
+    private Path getPath(String key) {
+        return new File(mDir, "%s/%s.jpg".formatted(key.substring(0, 2), key)).toPath();
+    }
+
+    private void link(Path storePath, File dest) throws IOException {
+        try {
+            Files.createLink(dest.toPath(), storePath);
+        } catch (IOException | UnsupportedOperationException ex) {
+            //Different file system or no hard link support
+            Files.copy(storePath, dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void touch(Path storePath) throws IOException {
+        //Album thumbnails may be links to this file, leave their modification time alone
+        Files.getFileAttributeView(storePath, BasicFileAttributeView.class).setTimes(null, FileTime.fromMillis(System.currentTimeMillis()), null);
+    }
+
+    public interface Writer {
+
+        void write(File file) throws IOException;
+    }
+
+    private static class Holder {
+
+        private static final ThumbnailStore INSTANCE = new ThumbnailStore();
+    }
+
+    private record StoredFile(Path path, long size, long lastAccess) {
+
+    }
+}
@@ -24,6 +24,7 @@ import javafx.scene.control.RadioButton;
 import javafx.scene.control.TextArea;
 import javafx.scene.control.TextField;
 import javafx.scene.control.ToggleGroup;
+import javafx.scene.control.Tooltip;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.HBox;
 import org.controlsfx.glyphfont.FontAwesome;
@@ -42,6 +43,7 @@ import static se.trixon.mapollage.ui.task.BaseTab.sValidationSupport;
  */
 public class DescriptionTab extends BaseTab {
 
+    private final CheckBox mBalloonTemplateCheckBox = new CheckBox(mBundle.getString("DescriptionTab.balloonTemplateCheckBox"));
     private final RadioButton mCustomRadioButton = new RadioButton(Dict.CUSTOMIZED.toString());
     private final Button mCustomResetButton = new Button(Dict.RESET.toString());
     private final TextArea mCustomTextArea = new TextArea();
@@ -102,6 +104,7 @@ public class DescriptionTab extends BaseTab {
         mCustomTextArea.setText(taskDescription.getCustomValue());
         mExternalTextField.setText(taskDescription.getExternalFileValue());
         mExternalDefaultCheckBox.setSelected(taskDescription.isDefaultTo());
+        mBalloonTemplateCheckBox.setSelected(taskDescription.isBalloonTemplate());
     }
 
     @Override
@@ -115,6 +118,7 @@ public class DescriptionTab extends BaseTab {
         taskDescription.setDate(mStaticDateCheckBox.isSelected());
         taskDescription.setCustomValue(mCustomTextArea.getText());
         taskDescription.setDefaultTo(mExternalDefaultCheckBox.isSelected());
+        taskDescription.setBalloonTemplate(mBalloonTemplateCheckBox.isSelected());
 
         if (mStaticRadioButton.isSelected()) {
             taskDescription.setMode(DescriptionMode.STATIC);
@@ -156,6 +160,9 @@ public class DescriptionTab extends BaseTab {
         mCustomResetButton.disableProperty().bind(mCustomRadioButton.selectedProperty().not());
         mCustomTextArea.disableProperty().bind(mCustomRadioButton.selectedProperty().not());
 
+        mBalloonTemplateCheckBox.setTooltip(new Tooltip(mBundle.getString("DescriptionTab.balloonTemplateCheckBox.toolTip")));
+        mBalloonTemplateCheckBox.disableProperty().bind(mStaticRadioButton.selectedProperty().or(mCustomRadioButton.selectedProperty()).not());
+
         var externalSelectedProperty = mExternalRadioButton.selectedProperty();
         mExternalDefaultCheckBox.disableProperty().bind(externalSelectedProperty.not());
         mExternalTextField.disableProperty().bind(externalSelectedProperty.not());
@@ -174,6 +181,8 @@ public class DescriptionTab extends BaseTab {
         customHBox.setAlignment(Pos.CENTER_LEFT);
         gp.addRow(row++, customHBox);
         gp.add(mCustomTextArea, col, row++, GridPane.REMAINING, 1);
+        gp.addRow(row++, new Spacer(Orientation.VERTICAL, FxHelper.getUIScaled(16)));
+        gp.add(mBalloonTemplateCheckBox, col, row++, GridPane.REMAINING, 1);
 //        gp.addRow(++row, mExternalRadioButton, mExternalDefaultCheckBox, mExternalStaticRadioButton, mExternalCustomRadioButton);
 //        gp.add(mExternalTextField, col, ++row, GridPane.REMAINING, 1);
 //        mExternalRadioButton.setDisable(true);
@@ -22,9 +22,11 @@ import java.util.function.Predicate;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 import javafx.collections.FXCollections;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.ComboBox;
 import javafx.scene.control.Label;
 import javafx.scene.control.RadioButton;
+import javafx.scene.control.Spinner;
 import javafx.scene.control.TextField;
 import javafx.scene.control.Toggle;
 import javafx.scene.control.ToggleGroup;
@@ -52,8 +54,10 @@ public class FoldersTab extends BaseTab {
     private final RadioButton mFolderByDirectoryRadioButton = new RadioButton(mBundle.getString("FoldersTab.folderByDirectoryRadioButton"));
     private final RadioButton mFolderByNoneRadioButton = new RadioButton(mBundle.getString("FoldersTab.folderByNoneRadioButton"));
     private final RadioButton mFolderByRegexRadioButton = new RadioButton(mBundle.getString("FoldersTab.folderByRegexRadioButton"));
+    private final Spinner<Integer> mMaxFileSizeSpinner = new Spinner<>(1, 1024, 10, 1);
     private final TextField mRegexDefaultTextField = new TextField();
     private final TextField mRegexTextField = new TextField();
+    private final CheckBox mSplitFilesCheckBox = new CheckBox(mBundle.getString("FoldersTab.splitFilesCheckBox"));
     private final ToggleGroup mToggleGroup = new ToggleGroup();
 
     public FoldersTab() {
@@ -71,6 +75,8 @@ public class FoldersTab extends BaseTab {
         mDatePatternComboBox.setValue(taskFolder.getDatePattern());
         mRegexTextField.setText(taskFolder.getRegex());
         mRegexDefaultTextField.setText(taskFolder.getRegexDefault());
+        mSplitFilesCheckBox.setSelected(taskFolder.isSplitFiles());
+        mMaxFileSizeSpinner.getValueFactory().setValue(taskFolder.getMaxFileSize());
 
         RadioButton folderByRadioButton;
 
@@ -94,6 +100,8 @@ public class FoldersTab extends BaseTab {
         taskFolder.setDatePattern(mDatePatternComboBox.getValue());
         taskFolder.setRegex(mRegexTextField.getText());
         taskFolder.setRegexDefault(mRegexDefaultTextField.getText());
+        taskFolder.setSplitFiles(mSplitFilesCheckBox.isSelected());
+        taskFolder.setMaxFileSize(mMaxFileSizeSpinner.getValue());
 
         FolderBy folderBy = null;
         Toggle t = mToggleGroup.getSelectedToggle();
@@ -117,6 +125,7 @@ public class FoldersTab extends BaseTab {
         setContent(vBox);
 
         var regexLabel = new Label(Dict.DEFAULT_VALUE.toString());
+        var maxFileSizeLabel = new Label(mBundle.getString("FoldersTab.maxFileSize"));
 
         mFolderByDirectoryRadioButton.setToggleGroup(mToggleGroup);
         mFolderByDateRadioButton.setToggleGroup(mToggleGroup);
@@ -137,9 +146,16 @@ public class FoldersTab extends BaseTab {
                 mRegexTextField,
                 regexLabel,
                 mRegexDefaultTextField,
-                mFolderByNoneRadioButton
+                mFolderByNoneRadioButton,
+                mSplitFilesCheckBox,
+                maxFileSizeLabel,
+                mMaxFileSizeSpinner
         );
 
+        mMaxFileSizeSpinner.setEditable(true);
+        FxHelper.autoCommitSpinners(mMaxFileSizeSpinner);
+        mSplitFilesCheckBox.setTooltip(new Tooltip(mBundle.getString("FoldersTab.splitFilesCheckBox.toolTip")));
+
         addTopPadding(
                 mFolderByDirectoryRadioButton,
                 mFolderByDateRadioButton,
@@ -149,6 +165,8 @@ public class FoldersTab extends BaseTab {
                 mFolderByNoneRadioButton
         );
 
+        FxHelper.setPadding(FxHelper.getUIScaledInsets(16, 0, 0, 0), mSplitFilesCheckBox);
+
         var leftInsets = FxHelper.getUIScaledInsets(0, 0, 0, 24);
         VBox.setMargin(mDatePatternComboBox, leftInsets);
         VBox.setMargin(mRegexTextField, leftInsets);
@@ -158,6 +176,8 @@ public class FoldersTab extends BaseTab {
         mDatePatternComboBox.disableProperty().bind(mFolderByDateRadioButton.selectedProperty().not());
         mRegexTextField.disableProperty().bind(mFolderByRegexRadioButton.selectedProperty().not());
         mRegexDefaultTextField.disableProperty().bind(mFolderByRegexRadioButton.selectedProperty().not());
+        maxFileSizeLabel.disableProperty().bind(mSplitFilesCheckBox.selectedProperty().not());
+        mMaxFileSizeSpinner.disableProperty().bind(mSplitFilesCheckBox.selectedProperty().not());
 
 //        EventHandler eventHandler = (EventHandler) (Event event) -> {
 ////            sValidationSupport.initInitialDecoration();
@@ -37,6 +37,7 @@ import se.trixon.mapollage.core.TaskPhoto;
  */
 public class PhotoTab extends BaseTab {
 
+    private final Spinner<Integer> mAnalyzeThreadsSpinner = new Spinner<>(0, 256, 0, 1);
     private final CheckBox mLowerCaseExtCheckBox = new CheckBox(mBundle.getString("PhotoTab.lowerCaseExtCheckBox"));
     private final CheckBox mMaxHeightCheckBox = new CheckBox(Dict.MAX_HEIGHT.toString());
     private final Spinner<Integer> mMaxHeightSpinner = new Spinner<>(1, Integer.MAX_VALUE, 400, 10);
@@ -50,6 +51,7 @@ public class PhotoTab extends BaseTab {
     private final ColorPicker mThumbnailBorderColorPicker = new ColorPicker();
     private final Spinner<Integer> mThumbnailBorderSizeSpinner = new Spinner<>(0, 20, 2, 1);
     private final Spinner<Integer> mThumbnailSizeSpinner = new Spinner<>(100, 1200, 250, 10);
+    private final Spinner<Integer> mThumbnailThreadsSpinner = new Spinner<>(0, 256, 0, 1);
     private final ToggleGroup mToggleGroup = new ToggleGroup();
 
     public PhotoTab() {
@@ -90,6 +92,8 @@ public class PhotoTab extends BaseTab {
 
         mThumbnailBorderSizeSpinner.getValueFactory().setValue(taskPhoto.getThumbnailBorderSize());
         mThumbnailSizeSpinner.getValueFactory().setValue(taskPhoto.getThumbnailSize());
+        mThumbnailThreadsSpinner.getValueFactory().setValue(taskPhoto.getThumbnailThreads());
+        mAnalyzeThreadsSpinner.getValueFactory().setValue(taskPhoto.getAnalyzeThreads());
 
         loadColor(taskPhoto.getThumbnailBorderColor(), mThumbnailBorderColorPicker);
     }
@@ -106,6 +110,8 @@ public class PhotoTab extends BaseTab {
         taskPhoto.setThumbnailSize(mThumbnailSizeSpinner.getValue());
         taskPhoto.setThumbnailBorderSize(mThumbnailBorderSizeSpinner.getValue());
         taskPhoto.setThumbnailBorderColor(FxHelper.colorToHexRGB(mThumbnailBorderColorPicker.getValue()));
+        taskPhoto.setThumbnailThreads(mThumbnailThreadsSpinner.getValue());
+        taskPhoto.setAnalyzeThreads(mAnalyzeThreadsSpinner.getValue());
 
         if (mRefAbsolutePathRadioButton.isSelected()) {
             taskPhoto.setReference(TaskPhoto.Reference.ABSOLUTE_PATH);
@@ -126,14 +132,18 @@ public class PhotoTab extends BaseTab {
                 mMaxHeightSpinner,
                 mMaxWidthSpinner,
                 mThumbnailSizeSpinner,
-                mThumbnailBorderSizeSpinner
+                mThumbnailBorderSizeSpinner,
+                mThumbnailThreadsSpinner,
+                mAnalyzeThreadsSpinner
         );
 
         FxHelper.autoCommitSpinners(
+                mAnalyzeThreadsSpinner,
                 mMaxHeightSpinner,
                 mMaxWidthSpinner,
                 mThumbnailBorderSizeSpinner,
-                mThumbnailSizeSpinner
+                mThumbnailSizeSpinner,
+                mThumbnailThreadsSpinner
         );
 
         mRefAbsolutePathRadioButton.setToggleGroup(mToggleGroup);
@@ -161,6 +171,10 @@ public class PhotoTab extends BaseTab {
         var thumbnailSizeLabel = new Label(mBundle.getString("PhotoTab.thumbnailSize"));
         var thumbnailBorderSizeLabel = new Label(mBundle.getString("PhotoTab.thumbnailBorderSize"));
         var thumbnailBorderColorLabel = new Label(mBundle.getString("PhotoTab.thumbnailBorderColor"));
+        var thumbnailThreadsLabel = new Label(mBundle.getString("PhotoTab.thumbnailThreads"));
+        thumbnailThreadsLabel.setTooltip(new Tooltip(mBundle.getString("PhotoTab.thumbnailThreads.toolTip")));
+        var analyzeThreadsLabel = new Label(mBundle.getString("PhotoTab.analyzeThreads"));
+        analyzeThreadsLabel.setTooltip(new Tooltip(mBundle.getString("PhotoTab.analyzeThreads.toolTip")));
 
         gp.addColumn(1,
                 thumbnailSizeLabel,
@@ -168,7 +182,11 @@ public class PhotoTab extends BaseTab {
                 thumbnailBorderSizeLabel,
                 mThumbnailBorderSizeSpinner,
                 thumbnailBorderColorLabel,
-                mThumbnailBorderColorPicker
+                mThumbnailBorderColorPicker,
+                thumbnailThreadsLabel,
+                mThumbnailThreadsSpinner,
+                analyzeThreadsLabel,
+                mAnalyzeThreadsSpinner
         );
 
         addTopMargin(
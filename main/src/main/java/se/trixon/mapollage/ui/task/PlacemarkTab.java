@@ -40,12 +40,19 @@ import se.trixon.mapollage.core.TaskPlacemark.SymbolAs;
  */
 public class PlacemarkTab extends BaseTab {
 
+    private final CheckBox mClusterCheckBox = new CheckBox(mBundle.getString("PlacemarkTab.clusterCheckBox"));
+    private final Spinner<Integer> mClusterLevelSpinner = new Spinner<>(1, 24, 14, 1);
     private final UriLabel mDateFormatUriLabel = new UriLabel(Dict.PATTERNS.toString());
     private final ComboBox<String> mDatePatternComboBox = new ComboBox<>();
+    private final CheckBox mIconAtlasCheckBox = new CheckBox(mBundle.getString("PlacemarkTab.iconAtlasCheckBox"));
+    private final Spinner<Integer> mIconSizeSpinner = new Spinner<>(16, 512, 128, 16);
     private final RadioButton mNameByDateRadioButton = new RadioButton(Dict.DATE_PATTERN.toString());
     private final RadioButton mNameByFileRadioButton = new RadioButton(Dict.FILENAME.toString());
     private final RadioButton mNameByNoRadioButton = new RadioButton(mBundle.getString("PlacemarkTab.nameByNoRadioButton"));
     private final ToggleGroup mNameByToggleGroup = new ToggleGroup();
+    private final Spinner<Integer> mRegionMaxDepthSpinner = new Spinner<>(1, 16, 8, 1);
+    private final Spinner<Integer> mRegionTileCapacitySpinner = new Spinner<>(10, 10000, 500, 50);
+    private final CheckBox mRegionTilesCheckBox = new CheckBox(mBundle.getString("PlacemarkTab.regionTilesCheckBox"));
     private final Spinner<Double> mScaleSpinner = new Spinner<>(0.5, 10.0, 1.0, 0.1);
     private final RadioButton mSymbolAsPhotoRadioButton = new RadioButton(Dict.PHOTO.toString());
     private final RadioButton mSymbolAsPinRadioButton = new RadioButton(Dict.PIN.toString());
@@ -65,9 +72,16 @@ public class PlacemarkTab extends BaseTab {
 
         var taskPlacemark = mTask.getPlacemark();
         mDatePatternComboBox.setValue(taskPlacemark.getDatePattern());
+        mIconSizeSpinner.getValueFactory().setValue(taskPlacemark.getIconSize());
+        mIconAtlasCheckBox.setSelected(taskPlacemark.isIconAtlas());
         mScaleSpinner.getValueFactory().setValue(taskPlacemark.getScale());
         mZoomSpinner.getValueFactory().setValue(taskPlacemark.getZoom());
         mTimestampCheckBox.setSelected(taskPlacemark.isTimestamp());
+        mClusterCheckBox.setSelected(taskPlacemark.isCluster());
+        mClusterLevelSpinner.getValueFactory().setValue(taskPlacemark.getClusterLevel());
+        mRegionTilesCheckBox.setSelected(taskPlacemark.isRegionTiles());
+        mRegionTileCapacitySpinner.getValueFactory().setValue(taskPlacemark.getRegionTileCapacity());
+        mRegionMaxDepthSpinner.getValueFactory().setValue(taskPlacemark.getRegionMaxDepth());
 
         RadioButton nameByRadioButton;
         switch (taskPlacemark.getNameBy()) {
@@ -105,9 +119,16 @@ public class PlacemarkTab extends BaseTab {
     public void save() {
         var taskPlacemark = mTask.getPlacemark();
         taskPlacemark.setDatePattern(mDatePatternComboBox.getValue());
+        taskPlacemark.setIconSize(mIconSizeSpinner.getValue());
+        taskPlacemark.setIconAtlas(mIconAtlasCheckBox.isSelected());
         taskPlacemark.setScale(mScaleSpinner.getValue());
         taskPlacemark.setZoom(mZoomSpinner.getValue());
         taskPlacemark.setTimestamp(mTimestampCheckBox.isSelected());
+        taskPlacemark.setCluster(mClusterCheckBox.isSelected());
+        taskPlacemark.setClusterLevel(mClusterLevelSpinner.getValue());
+        taskPlacemark.setRegionTiles(mRegionTilesCheckBox.isSelected());
+        taskPlacemark.setRegionTileCapacity(mRegionTileCapacitySpinner.getValue());
+        taskPlacemark.setRegionMaxDepth(mRegionMaxDepthSpinner.getValue());
 
         NameBy nameBy = null;
         var nameToggle = mNameByToggleGroup.getSelectedToggle();
@@ -136,9 +157,13 @@ public class PlacemarkTab extends BaseTab {
 
     private void createUI() {
         mDateFormatUriLabel.setUri(DATE_FORMAT_URL);
+        mIconSizeSpinner.setEditable(true);
         mScaleSpinner.setEditable(true);
         mZoomSpinner.setEditable(true);
-        FxHelper.autoCommitSpinners(mScaleSpinner, mZoomSpinner);
+        mClusterLevelSpinner.setEditable(true);
+        mRegionTileCapacitySpinner.setEditable(true);
+        mRegionMaxDepthSpinner.setEditable(true);
+        FxHelper.autoCommitSpinners(mIconSizeSpinner, mScaleSpinner, mZoomSpinner, mClusterLevelSpinner, mRegionTileCapacitySpinner, mRegionMaxDepthSpinner);
 
         mNameByFileRadioButton.setToggleGroup(mNameByToggleGroup);
         mNameByDateRadioButton.setToggleGroup(mNameByToggleGroup);
@@ -151,8 +176,12 @@ public class PlacemarkTab extends BaseTab {
         var leftInsets = FxHelper.getUIScaledInsets(0, 0, 0, 24);
         VBox.setMargin(mDatePatternComboBox, leftInsets);
         var symbolLabel = new Label(Dict.SYMBOL.toString());
+        var iconSizeLabel = new Label(mBundle.getString("PlacemarkTab.iconSize"));
         var scaleLabel = new Label(Dict.SCALE.toString());
         var zoomLabel = new Label(Dict.ZOOM.toString());
+        var clusterLevelLabel = new Label(mBundle.getString("PlacemarkTab.clusterLevel"));
+        var regionTileCapacityLabel = new Label(mBundle.getString("PlacemarkTab.regionTileCapacity"));
+        var regionMaxDepthLabel = new Label(mBundle.getString("PlacemarkTab.regionMaxDepth"));
 
         var vBox = new VBox(
                 new Label(mBundle.getString("PlacemarkTab.nameByLabel")),
@@ -163,19 +192,38 @@ public class PlacemarkTab extends BaseTab {
                 symbolLabel,
                 mSymbolAsPhotoRadioButton,
                 mSymbolAsPinRadioButton,
+                iconSizeLabel,
+                mIconSizeSpinner,
+                mIconAtlasCheckBox,
                 scaleLabel,
                 mScaleSpinner,
                 zoomLabel,
                 mZoomSpinner,
-                mTimestampCheckBox
+                mTimestampCheckBox,
+                mClusterCheckBox,
+                clusterLevelLabel,
+                mClusterLevelSpinner,
+                mRegionTilesCheckBox,
+                regionTileCapacityLabel,
+                mRegionTileCapacitySpinner,
+                regionMaxDepthLabel,
+                mRegionMaxDepthSpinner
         );
 
         mSymbolAsPhotoRadioButton.setTooltip(new Tooltip(mBundle.getString("PlacemarkTab.symbolPhotoRadioButton.toolTip")));
         mSymbolAsPhotoRadioButton.setToggleGroup(mSymbolToggleGroup);
         mSymbolAsPinRadioButton.setToggleGroup(mSymbolToggleGroup);
+        mIconSizeSpinner.setTooltip(new Tooltip(mBundle.getString("PlacemarkTab.iconSize.toolTip")));
+        mIconAtlasCheckBox.setTooltip(new Tooltip(mBundle.getString("PlacemarkTab.iconAtlasCheckBox.toolTip")));
+        mClusterCheckBox.setTooltip(new Tooltip(mBundle.getString("PlacemarkTab.clusterCheckBox.toolTip")));
+        mClusterLevelSpinner.setTooltip(new Tooltip(mBundle.getString("PlacemarkTab.clusterLevel.toolTip")));
+        mRegionTilesCheckBox.setTooltip(new Tooltip(mBundle.getString("PlacemarkTab.regionTilesCheckBox.toolTip")));
 
         var topInsets = FxHelper.getUIScaledInsets(8, 0, 0, 0);
+        VBox.setMargin(mIconAtlasCheckBox, topInsets);
         VBox.setMargin(mTimestampCheckBox, topInsets);
+        VBox.setMargin(mClusterCheckBox, topInsets);
+        VBox.setMargin(mRegionTilesCheckBox, topInsets);
 
         addTopPadding(
                 mNameByFileRadioButton,
@@ -188,12 +236,22 @@ public class PlacemarkTab extends BaseTab {
 
         FxHelper.setPadding(FxHelper.getUIScaledInsets(16, 0, 0, 0),
                 symbolLabel,
+                iconSizeLabel,
                 scaleLabel,
                 zoomLabel,
                 mTimestampCheckBox
         );
 
         mDatePatternComboBox.disableProperty().bind(mNameByDateRadioButton.selectedProperty().not());
+        iconSizeLabel.disableProperty().bind(mSymbolAsPhotoRadioButton.selectedProperty().not());
+        mIconSizeSpinner.disableProperty().bind(mSymbolAsPhotoRadioButton.selectedProperty().not());
+        mIconAtlasCheckBox.disableProperty().bind(mSymbolAsPhotoRadioButton.selectedProperty().not());
+        clusterLevelLabel.disableProperty().bind(mClusterCheckBox.selectedProperty().not());
+        mClusterLevelSpinner.disableProperty().bind(mClusterCheckBox.selectedProperty().not());
+        regionTileCapacityLabel.disableProperty().bind(mRegionTilesCheckBox.selectedProperty().not());
+        mRegionTileCapacitySpinner.disableProperty().bind(mRegionTilesCheckBox.selectedProperty().not());
+        regionMaxDepthLabel.disableProperty().bind(mRegionTilesCheckBox.selectedProperty().not());
+        mRegionMaxDepthSpinner.disableProperty().bind(mRegionTilesCheckBox.selectedProperty().not());
 
         setContent(vBox);
     }
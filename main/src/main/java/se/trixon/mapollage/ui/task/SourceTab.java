@@ -54,7 +54,10 @@ public class SourceTab extends BaseTab {
     private final LocaleComboBox mLocaleComboBox = new LocaleComboBox();
     private final TextField mNameTextField = new TextField();
     private final CheckBox mRecursiveCheckBox = new CheckBox(mBundle.getString("SourceTab.recursive"));
+    private final CheckBox mScanIndexCheckBox = new CheckBox(mBundle.getString("SourceTab.scanIndex"));
+    private final CheckBox mScanIndexVerifyCheckBox = new CheckBox(mBundle.getString("SourceTab.scanIndexVerify"));
     private final FileChooserPaneSwingFx mSourceChooser = new FileChooserPaneSwingFx(Dict.SELECT.toString(), Dict.IMAGE_DIRECTORY.toString(), Almond.getFrame(), JFileChooser.DIRECTORIES_ONLY);
+    private final CheckBox mStreamingCheckBox = new CheckBox(mBundle.getString("SourceTab.streaming"));
 
     public SourceTab() {
         setText(Dict.SOURCE.toString());
@@ -78,6 +81,9 @@ public class SourceTab extends BaseTab {
 
         mRecursiveCheckBox.setSelected(taskSource.isRecursive());
         mLinksCheckBox.setSelected(taskSource.isFollowLinks());
+        mStreamingCheckBox.setSelected(taskSource.isStreaming());
+        mScanIndexCheckBox.setSelected(taskSource.isScanIndex());
+        mScanIndexVerifyCheckBox.setSelected(taskSource.isScanIndexVerify());
         mIncludeCheckBox.setSelected(taskSource.isIncludeNullCoordinate());
         mDefaultLatSpinner.getValueFactory().setValue(taskSource.getDefaultLat());
         mDefaultLonSpinner.getValueFactory().setValue(taskSource.getDefaultLon());
@@ -99,6 +105,9 @@ public class SourceTab extends BaseTab {
 
         taskSource.setRecursive(mRecursiveCheckBox.isSelected());
         taskSource.setFollowLinks(mLinksCheckBox.isSelected());
+        taskSource.setStreaming(mStreamingCheckBox.isSelected());
+        taskSource.setScanIndex(mScanIndexCheckBox.isSelected());
+        taskSource.setScanIndexVerify(mScanIndexVerifyCheckBox.isSelected());
         taskSource.setIncludeNullCoordinate(mIncludeCheckBox.isSelected());
         taskSource.setDefaultLat(mDefaultLatSpinner.getValue());
         taskSource.setDefaultLon(mDefaultLonSpinner.getValue());
@@ -113,6 +122,8 @@ public class SourceTab extends BaseTab {
         var excludeLabel = new Label(mBundle.getString("SourceTab.excludeLabel"));
 
         mExcludeTextField.setTooltip(new Tooltip(mBundle.getString("SourceTab.excludeTextField.toolTip")));
+        mStreamingCheckBox.setTooltip(new Tooltip(mBundle.getString("SourceTab.streaming.toolTip")));
+        mScanIndexCheckBox.setTooltip(new Tooltip(mBundle.getString("SourceTab.scanIndex.toolTip")));
 
         var gp1 = new GridPane(FxHelper.getUIScaled(8), FxHelper.getUIScaled(2));
         gp1.addRow(0, filePatternLabel, excludeLabel);
@@ -130,6 +141,9 @@ public class SourceTab extends BaseTab {
         gp2.add(mIncludeCheckBox, 0, row, 2, 1);
         gp2.add(mRecursiveCheckBox, 2, row);
         gp2.add(mLinksCheckBox, 3, row);
+        gp2.add(mScanIndexCheckBox, 0, ++row, 2, 1);
+        gp2.add(mStreamingCheckBox, 2, row, 2, 1);
+        gp2.add(mScanIndexVerifyCheckBox, 0, ++row, 2, 1);
         gp2.add(separator, 0, ++row, GridPane.REMAINING, 1);
         gp2.add(latBox, 0, ++row);
         gp2.add(lonBox, 1, row);
@@ -138,6 +152,7 @@ public class SourceTab extends BaseTab {
 //        gp2.setBackground(FxHelper.createBackground(Color.RED));
         latBox.disableProperty().bind(mIncludeCheckBox.selectedProperty().not());
         lonBox.disableProperty().bind(mIncludeCheckBox.selectedProperty().not());
+        mScanIndexVerifyCheckBox.disableProperty().bind(mScanIndexCheckBox.selectedProperty().not());
 
         addTopPadding(
                 descLabel,